@@ -1,15 +1,25 @@
 package com.spacehopperstudios.database;
 
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
 public class Connection {
 
+	/**
+	 * The database server being connected to, which picks the JDBC driver and URL.
+	 */
+	public enum Dialect {
+		POSTGRES, MYSQL
+	}
+
 	private String server;
 	private String database;
 	private java.sql.Connection connection;
@@ -20,11 +30,21 @@ public class Connection {
 	private long affectedRowCount;
 	private long insertedId;
 	private boolean isTransactionMode;
+	private Properties properties;
+	private Dialect dialect;
+	private boolean statementCached;
 
 	private static final Logger LOGGER = Logger.getLogger(Connection.class);
 
+	private static final Set<String> LOADED_DRIVERS = new HashSet<String>();
+
 	public Connection(String server, String database, String username, String password) throws InstantiationException, IllegalAccessException,
 			ClassNotFoundException {
+		this(server, database, username, password, Dialect.POSTGRES);
+	}
+
+	public Connection(String server, String database, String username, String password, Dialect dialect) throws InstantiationException,
+			IllegalAccessException, ClassNotFoundException {
 		if (LOGGER.isTraceEnabled()) {
 			LOGGER.trace("Create connection with server " + server + ", database: " + database + ", username: " + username + " and password: " + password);
 		}
@@ -42,25 +62,59 @@ public class Connection {
 		this.database = database;
 		this.username = username;
 		this.password = password;
+		this.properties = new Properties();
+		this.dialect = dialect;
 
-		String databaseDriver = getDatabaseDriverName();
-		Class.forName(databaseDriver).newInstance();
+		loadDriver(getDatabaseDriverName());
+	}
+
+	/**
+	 * Registers the JDBC driver with DriverManager the first time it is needed.
+	 */
+	private static void loadDriver(String databaseDriver) throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+		synchronized (LOADED_DRIVERS) {
+			if (!LOADED_DRIVERS.contains(databaseDriver)) {
+				Class.forName(databaseDriver).newInstance();
+				LOADED_DRIVERS.add(databaseDriver);
+			}
+		}
 	}
 
 	private String getDatabaseDriverName() {
-		return "org.postgresql.Driver";
+		return dialect == Dialect.MYSQL ? "com.mysql.jdbc.Driver" : "org.postgresql.Driver";
 	}
 
-	public void connect() throws SQLException {
+	private String getUrl() {
+		if (dialect == Dialect.MYSQL) {
+			return "jdbc:mysql://" + server + "/" + database;
+		}
+
 		String port = "5433";
-		String url = "jdbc:postgresql://" + server + ":"+port+"/" + database;
+		return "jdbc:postgresql://" + server + ":"+port+"/" + database;
+	}
+
+	public void connect() throws SQLException {
+		String url = getUrl();
 
 		if (connection == null) {
-			connection = DriverManager.getConnection(url, username, password);
+			Properties info = new Properties();
+			info.putAll(properties);
+			info.setProperty("user", username);
+			info.setProperty("password", password);
+
+			connection = ConnectionPool.getDefault().borrow(url, info);
+			connection.setAutoCommit(!isTransactionMode);
 			//executeQuery("set names \'utf8\'");
 		}
 	}
 
+	/**
+	 * Sets a driver connection property, e.g. to enable a batching optimisation. Only takes effect for connections made after the call.
+	 */
+	public void setProperty(String key, String value) {
+		properties.setProperty(key, value);
+	}
+
 	public void executePreparedStatement(PreparedStatement ps, String sql) throws NullPointerException, SQLException {
 		if (LOGGER.isTraceEnabled()) {
 			LOGGER.trace("executing prepared statement: " + ps);
@@ -75,19 +129,16 @@ public class Connection {
 
 		connect();
 
-		boolean success = false;
 		LOGGER.debug("EXECUTING prepared statement: "+ps);
-		try {
-			queryResult = ps.executeQuery();
-			success = ps.execute(sql, Statement.RETURN_GENERATED_KEYS);
+		if (ps.execute()) {
 			queryResult = ps.getResultSet();
-		} catch (Exception ex) {
-			LOGGER.error("unable to return generated keys, trying other.");
-			success = ps.execute(sql);
-			queryResult = ps.getGeneratedKeys();
 		}
 	}
 
+	/**
+	 * Executes query, whose results (if any) are then read with nextRow() and getCurrentRowValue(). Generated keys aren't asked for: on Postgres that would
+	 * append RETURNING * to the statement and bring back every row it touched; see executeInsert().
+	 */
 	public void executeQuery(String query) throws NullPointerException, SQLException {
 		if (LOGGER.isTraceEnabled()) {
 			LOGGER.trace("executing query: " + query);
@@ -99,23 +150,82 @@ public class Connection {
 			throw new IllegalArgumentException("query cannot be empty");
 
 		affectedRowCount = -1;
-		statement = null;
+		closeStatement();
 		insertedId = -1;
 
 		connect();
 
 		statement = connection.createStatement();
-		boolean success = false;
 		LOGGER.debug("EXECUTING QUERY: "+query);
-		try {
-			success = statement.execute(query, Statement.RETURN_GENERATED_KEYS);
+		if (statement.execute(query)) {
 			queryResult = statement.getResultSet();
-		} catch (Exception ex) {
-			LOGGER.error("unable to return generated keys, trying other.");
-			success = statement.execute(query);
-			queryResult = statement.getGeneratedKeys();
 		}
+	}
+
+	/**
+	 * Executes an INSERT, asking for the keys it generates, which getInsertedId() then returns.
+	 */
+	public void executeInsert(String query) throws NullPointerException, SQLException {
+		if (LOGGER.isTraceEnabled()) {
+			LOGGER.trace("executing insert: " + query);
+		}
+
+		if (query == null)
+			throw new NullPointerException("query cannot be null");
+
+		affectedRowCount = -1;
+		closeStatement();
+		insertedId = -1;
+
+		connect();
+
+		statement = connection.createStatement();
+		statement.executeUpdate(query, Statement.RETURN_GENERATED_KEYS);
+		queryResult = statement.getGeneratedKeys();
+	}
+
+	/**
+	 * Executes sql with parameters bound to its placeholders in order, through a PreparedStatement cached on the underlying connection, so that running the
+	 * same SQL again skips parsing and planning. Results are read as for executeQuery().
+	 */
+	public void execute(String sql, Object... parameters) throws NullPointerException, SQLException {
+		if (LOGGER.isTraceEnabled()) {
+			LOGGER.trace("executing prepared query: " + sql);
+		}
+
+		if (sql == null)
+			throw new NullPointerException("sql cannot be null");
+
+		affectedRowCount = -1;
+		closeStatement();
+		insertedId = -1;
+
+		PreparedStatement ps = getCachedStatement(sql);
+		ps.clearParameters();
+		for (int i = 0; i < parameters.length; i++) {
+			if (parameters[i] == null) {
+				ps.setNull(i + 1, Types.NULL);
+			} else {
+				ps.setObject(i + 1, parameters[i]);
+			}
+		}
+
+		statement = ps;
+		statementCached = true;
+
+		if (ps.execute()) {
+			queryResult = ps.getResultSet();
+		}
+	}
 
+	/**
+	 * Returns the PreparedStatement cached for sql on the underlying connection (preparing it if need be); it stays open after disconnect(), for the next
+	 * user of the connection, so callers must not close it.
+	 */
+	public PreparedStatement getCachedStatement(String sql) throws SQLException {
+		connect();
+
+		return ConnectionPool.getDefault().getStatementCache(connection).get(sql);
 	}
 
 	public long getInsertedId() throws SQLException {
@@ -145,6 +255,13 @@ public class Connection {
 		}
 	}
 
+	/**
+	 * Moves to the next row of the last query's results, like fetchNextRow(), returning false if there are no more.
+	 */
+	public boolean nextRow() throws SQLException {
+		return queryResult != null && queryResult.next();
+	}
+
 	public Object getCurrentRowValue(String key) throws SQLException {
 		Object value = null;
 
@@ -187,12 +304,37 @@ public class Connection {
 		return count;
 	}
 
+	/**
+	 * Hands the connection back to the {@link ConnectionPool}; the next call that needs one borrows another.
+	 */
 	public void disconnect() throws SQLException {
 		if (connection != null) {
-			if (!connection.isClosed()) {
-				connection.close();
-				connection = null;
+			closeStatement();
+			ConnectionPool.getDefault().release(connection);
+			connection = null;
+		}
+	}
+
+	/**
+	 * Closes the statement of the last query, which would otherwise stay open on the pooled connection; a cached statement only has its results closed.
+	 */
+	private void closeStatement() {
+		if (statement != null) {
+			try {
+				if (statementCached) {
+					if (queryResult != null) {
+						queryResult.close();
+					}
+				} else {
+					statement.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.warn("Unable to close statement", e);
 			}
+
+			statement = null;
+			statementCached = false;
+			queryResult = null;
 		}
 	}
 
@@ -218,6 +360,16 @@ public class Connection {
 		}
 	}
 
+	public void rollback() throws SQLException {
+		if (isTransactionMode) {
+			if (isConnected()) {
+				connection.rollback();
+			}
+		} else {
+			LOGGER.info("Attemting to rollback when not in transaction mode");
+		}
+	}
+
 	public void setTransactionMode(boolean transactional) {
 		if (connection == null) {
 			if (isTransactionMode != transactional) {
@@ -226,7 +378,18 @@ public class Connection {
 		}
 	}
 
+	/**
+	 * The underlying JDBC connection (connecting first if need be), for driver-specific APIs such as Postgres's COPY or Connector/J's LOAD DATA input streams.
+	 */
+	public java.sql.Connection getJdbcConnection() throws SQLException {
+		connect();
+
+		return connection;
+	}
+
 	public PreparedStatement getPreparedStatement(String sql) throws SQLException {
+		connect();
+
 		return connection.prepareStatement(sql);
 	}
 }
\ No newline at end of file
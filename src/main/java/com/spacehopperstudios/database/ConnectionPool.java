@@ -0,0 +1,372 @@
+package com.spacehopperstudios.database;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded pool of JDBC connections, shared by every {@link Connection}.
+ * 
+ * Connections are pooled by URL and driver properties, so a connection is only handed out again to a caller asking for the same database with the same
+ * settings. An idle connection is checked with a trivial query before it is handed out, unless it was returned only moments ago, and connections left idle for
+ * longer than the idle timeout are closed. When maxSize connections are open, borrow() waits for one to be returned, closing an idle connection to another
+ * database if there is one.
+ */
+public class ConnectionPool {
+
+	private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class);
+
+	public static final int DEFAULT_MAX_SIZE = 16;
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+	public static final long DEFAULT_BORROW_TIMEOUT = 5 * 60 * 1000;
+
+	private static final long VALIDATE_AFTER = 10 * 1000; // connections idle for less than this are handed out without a round trip
+	private static final int VALIDATE_TIMEOUT = 5;
+	private static final String VALIDATE_QUERY = "SELECT 1";
+
+	private static final ConnectionPool DEFAULT = new ConnectionPool(DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT);
+
+	/**
+	 * A connection opened by the pool, with its statement cache and the time it was last returned.
+	 */
+	private static class Pooled {
+		String key;
+		java.sql.Connection connection;
+		StatementCache statementCache;
+		long since;
+
+		Pooled(String key, java.sql.Connection connection) {
+			this.key = key;
+			this.connection = connection;
+			this.statementCache = new StatementCache(connection, StatementCache.DEFAULT_SIZE);
+			this.since = System.currentTimeMillis();
+		}
+	}
+
+	private int maxSize;
+	private long idleTimeout;
+	private long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+	private int open; // connections borrowed or idle, plus any being opened
+	private LinkedList<Pooled> idle = new LinkedList<Pooled>(); // most recently returned first
+	private Map<java.sql.Connection, Pooled> borrowed = new IdentityHashMap<java.sql.Connection, Pooled>();
+	private ScheduledExecutorService evictor;
+	private boolean closed;
+
+	public ConnectionPool(int maxSize, long idleTimeout) {
+		this.maxSize = maxSize;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * The pool used by {@link Connection}.
+	 */
+	public static ConnectionPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns an open connection to url with the given driver properties, opening one if no suitable idle connection is left.
+	 */
+	public java.sql.Connection borrow(String url, Properties info) throws SQLException {
+		String key = getKey(url, info);
+		long deadline = System.currentTimeMillis() + borrowTimeout;
+
+		while (true) {
+			Pooled found = null;
+			Pooled displaced = null;
+
+			synchronized (this) {
+				if (closed) {
+					throw new SQLException("Connection pool has been closed");
+				}
+
+				for (Iterator<Pooled> i = idle.iterator(); i.hasNext();) {
+					Pooled candidate = i.next();
+
+					if (candidate.key.equals(key)) {
+						i.remove();
+						found = candidate;
+						break;
+					}
+				}
+
+				if (found == null) {
+					if (open >= maxSize && !idle.isEmpty()) {
+						displaced = idle.removeLast(); // make room by closing the connection to another database that has been idle longest
+						open--;
+					}
+
+					if (open >= maxSize) {
+						long wait = deadline - System.currentTimeMillis();
+
+						if (wait <= 0) {
+							throw new SQLException(String.format("No connection became available within %d ms (%d open)", borrowTimeout, open));
+						}
+
+						try {
+							wait(wait);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new SQLException("Interrupted while waiting for a connection", e);
+						}
+
+						continue;
+					}
+
+					open++;
+				}
+			}
+
+			closeQuietly(displaced);
+
+			if (found != null) {
+				if (System.currentTimeMillis() - found.since < VALIDATE_AFTER || isValid(found.connection)) {
+					synchronized (this) {
+						borrowed.put(found.connection, found);
+					}
+
+					return found.connection;
+				}
+
+				if (LOGGER.isDebugEnabled()) {
+					LOGGER.debug(String.format("Discarding broken connection to %s", url));
+				}
+
+				closeQuietly(found);
+				synchronized (this) {
+					open--;
+					notifyAll();
+				}
+
+				continue;
+			}
+
+			java.sql.Connection connection;
+			try {
+				connection = DriverManager.getConnection(url, info);
+			} catch (SQLException e) {
+				synchronized (this) {
+					open--;
+					notifyAll();
+				}
+				throw e;
+			}
+
+			synchronized (this) {
+				borrowed.put(connection, new Pooled(key, connection));
+			}
+
+			return connection;
+		}
+	}
+
+	/**
+	 * Takes back a connection returned by borrow(); any transaction left open on it is rolled back.
+	 */
+	public void release(java.sql.Connection connection) {
+		Pooled returned;
+		synchronized (this) {
+			returned = borrowed.remove(connection);
+		}
+
+		if (returned == null) {
+			LOGGER.warn("Closing a connection that was not borrowed from the pool");
+			closeQuietly(new Pooled(null, connection));
+			return;
+		}
+
+		boolean reusable;
+		try {
+			reusable = !connection.isClosed();
+
+			if (reusable) {
+				if (!connection.getAutoCommit()) {
+					connection.rollback();
+					connection.setAutoCommit(true);
+				}
+
+				connection.clearWarnings();
+				returned.statementCache.reset();
+			}
+		} catch (SQLException e) {
+			LOGGER.warn("Discarding a connection that could not be reset", e);
+			reusable = false;
+		}
+
+		synchronized (this) {
+			if (reusable && !closed) {
+				returned.since = System.currentTimeMillis();
+				idle.addFirst(returned);
+				startEvictor();
+				returned = null;
+			} else {
+				open--;
+			}
+
+			notifyAll();
+		}
+
+		closeQuietly(returned);
+	}
+
+	/**
+	 * The statement cache of a connection returned by borrow() and not yet released.
+	 */
+	StatementCache getStatementCache(java.sql.Connection connection) {
+		synchronized (this) {
+			Pooled pooled = borrowed.get(connection);
+			return pooled == null ? null : pooled.statementCache;
+		}
+	}
+
+	/**
+	 * Closes the connections that have been idle for longer than the idle timeout.
+	 */
+	public void evict() {
+		List<Pooled> expired = new ArrayList<Pooled>();
+		long cutoff = System.currentTimeMillis() - idleTimeout;
+
+		synchronized (this) {
+			for (Iterator<Pooled> i = idle.iterator(); i.hasNext();) {
+				Pooled candidate = i.next();
+
+				if (candidate.since < cutoff) {
+					i.remove();
+					expired.add(candidate);
+					open--;
+				}
+			}
+
+			if (!expired.isEmpty()) {
+				notifyAll();
+			}
+		}
+
+		if (!expired.isEmpty() && LOGGER.isDebugEnabled()) {
+			LOGGER.debug(String.format("Closing %d idle connections", expired.size()));
+		}
+
+		for (Pooled pooled : expired) {
+			closeQuietly(pooled);
+		}
+	}
+
+	/**
+	 * Closes every idle connection; connections still borrowed are closed as they are released.
+	 */
+	public void close() {
+		List<Pooled> all;
+
+		synchronized (this) {
+			closed = true;
+			all = new ArrayList<Pooled>(idle);
+			open -= idle.size();
+			idle.clear();
+
+			if (evictor != null) {
+				evictor.shutdownNow();
+				evictor = null;
+			}
+
+			notifyAll();
+		}
+
+		for (Pooled pooled : all) {
+			closeQuietly(pooled);
+		}
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		notifyAll();
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	/**
+	 * Number of connections currently open, whether borrowed or idle.
+	 */
+	public synchronized int getOpenCount() {
+		return open;
+	}
+
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	private void startEvictor() {
+		if (evictor == null) {
+			evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("epf-pool-evictor").setDaemon(true).build());
+			long period = Math.max(1000, idleTimeout / 2);
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					evict();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static boolean isValid(java.sql.Connection connection) {
+		Statement statement = null;
+
+		try {
+			// not every driver implements Connection.isValid()
+			statement = connection.createStatement();
+			statement.setQueryTimeout(VALIDATE_TIMEOUT);
+			statement.execute(VALIDATE_QUERY);
+			return true;
+		} catch (SQLException e) {
+			return false;
+		} finally {
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					// already broken
+				}
+			}
+		}
+	}
+
+	private static void closeQuietly(Pooled pooled) {
+		if (pooled != null) {
+			pooled.statementCache.close();
+
+			try {
+				pooled.connection.close();
+			} catch (SQLException e) {
+				LOGGER.warn("Unable to close pooled connection", e);
+			}
+		}
+	}
+
+	private static String getKey(String url, Properties info) {
+		Map<String, String> sorted = new TreeMap<String, String>();
+		for (String name : info.stringPropertyNames()) {
+			sorted.put(name, info.getProperty(name));
+		}
+
+		return url + sorted;
+	}
+}
@@ -0,0 +1,81 @@
+package com.spacehopperstudios.database;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Least recently used cache of the PreparedStatements prepared on one JDBC connection, keyed by their SQL text.
+ * 
+ * The cache lives as long as the connection does, in the {@link ConnectionPool}, so statements are reused across every {@link Connection} that borrows it, and
+ * the driver can keep using the plan it prepared on the server. Like the connection, it must only be used by one thread at a time.
+ */
+class StatementCache {
+
+	private static final Logger LOGGER = Logger.getLogger(StatementCache.class);
+
+	public static final int DEFAULT_SIZE = 32;
+
+	private java.sql.Connection connection;
+	private Map<String, PreparedStatement> statements;
+
+	StatementCache(java.sql.Connection connection, final int size) {
+		this.connection = connection;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > size) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the statement prepared for sql, preparing it if it isn't cached; callers must not close it.
+	 */
+	PreparedStatement get(String sql) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+
+		if (statement == null) {
+			statement = connection.prepareStatement(sql);
+			statements.put(sql, statement);
+		}
+
+		return statement;
+	}
+
+	/**
+	 * Drops any batch or parameters a previous user of the connection left on the cached statements.
+	 */
+	void reset() throws SQLException {
+		for (PreparedStatement statement : statements.values()) {
+			statement.clearBatch();
+			statement.clearParameters();
+		}
+	}
+
+	void close() {
+		for (PreparedStatement statement : statements.values()) {
+			closeQuietly(statement);
+		}
+
+		statements.clear();
+	}
+
+	private static void closeQuietly(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			LOGGER.warn("Unable to close cached statement", e);
+		}
+	}
+}
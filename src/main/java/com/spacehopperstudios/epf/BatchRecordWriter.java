@@ -0,0 +1,232 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.spacehopperstudios.database.Connection;
+
+/**
+ * {@link RecordWriter} binding records to a single parameterized INSERT and sending each batch through addBatch()/executeBatch() in one transaction.
+ *
+ * Numeric and date columns are bound as longs and timestamps, so no values are escaped or parsed by the server as SQL text. Given a {@link RecordBatch},
+ * the writer binds its primitives directly, without boxing them. The connection should have the
+ * driver's batch rewriting enabled (see {@link Ingester#connect()}) so that a batch goes over the wire as a few multi-row inserts. The statement comes from
+ * the connection's statement cache, so its server-side plan outlives the writer.
+ */
+public class BatchRecordWriter implements TypedRecordWriter {
+
+	private static final Logger LOGGER = Logger.getLogger(BatchRecordWriter.class);
+
+	public static final int BATCH_SIZE = 1000;
+
+	private static final int NUMBER = RecordBatch.NUMBER;
+	private static final int DATE = RecordBatch.DATE;
+
+	private Connection connection;
+	private String sql;
+	private PreparedStatement statement;
+	private int[] columnKinds;
+	private long rejectedRecords;
+
+	/**
+	 * sql is the INSERT statement with one placeholder per column of the parser's records.
+	 */
+	public BatchRecordWriter(Connection connection, String sql, Parser parser) {
+		this.connection = connection;
+		this.sql = sql;
+		this.connection.setTransactionMode(true);
+
+		this.columnKinds = new int[parser.getColumnNames().size()];
+		for (Integer j : parser.getNumberColumns()) {
+			if (j.intValue() < columnKinds.length) {
+				columnKinds[j.intValue()] = NUMBER;
+			}
+		}
+		for (Integer j : parser.getDateColumns()) {
+			if (j.intValue() < columnKinds.length) {
+				columnKinds[j.intValue()] = DATE;
+			}
+		}
+	}
+
+	public int getBatchSize() {
+		return BATCH_SIZE;
+	}
+
+	/**
+	 * Converts each value to what it will be bound as: a Long, a Timestamp, a String, or null.
+	 */
+	public Object encode(List<List<String>> records) {
+		Object[][] rows = new Object[records.size()][];
+
+		for (int r = 0; r < rows.length; r++) {
+			List<String> aRecord = records.get(r);
+			Object[] row = new Object[aRecord.size()];
+
+			for (int i = 0; i < row.length; i++) {
+				row[i] = convert(columnKinds[i], aRecord.get(i));
+			}
+
+			rows[r] = row;
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Nothing to do: write() binds the batch's values as they are.
+	 */
+	public Object encode(RecordBatch batch) {
+		return batch;
+	}
+
+	/**
+	 * Counts 8 bytes for numbers and dates, and the UTF-8 length of strings.
+	 */
+	public long getEncodedSize(Object encoded) {
+		long size = 0;
+
+		if (encoded instanceof RecordBatch) {
+			RecordBatch batch = (RecordBatch) encoded;
+
+			for (int r = 0; r < batch.size(); r++) {
+				for (int i = 0; i < batch.getColumnCount(); i++) {
+					String value = batch.getString(r, i);
+					size += (value != null ? BatchSizer.utf8Length(value) : 8);
+				}
+			}
+
+			return size;
+		}
+
+		for (Object[] row : (Object[][]) encoded) {
+			for (Object value : row) {
+				size += (value instanceof String ? BatchSizer.utf8Length((String) value) : 8);
+			}
+		}
+
+		return size;
+	}
+
+	public void write(Object encoded, int recordCount) throws SQLException {
+		if (statement == null) {
+			statement = connection.getCachedStatement(sql);
+		}
+
+		if (encoded instanceof RecordBatch) {
+			bindAll((RecordBatch) encoded);
+		} else {
+			for (Object[] row : (Object[][]) encoded) {
+				for (int i = 0; i < row.length; i++) {
+					bind(i + 1, columnKinds[i], row[i]);
+				}
+
+				statement.addBatch();
+			}
+		}
+
+		try {
+			statement.executeBatch();
+			connection.commit();
+		} catch (SQLException e) {
+			LOGGER.error(String.format("Error occured executing a batch of %d records: %s", recordCount, sql), e.getNextException() == null ? e
+					: e.getNextException());
+			statement.clearBatch();
+			connection.rollback();
+			rejectedRecords += recordCount;
+		}
+	}
+
+	public long getRejectedRecords() {
+		return rejectedRecords;
+	}
+
+	private static Object convert(int kind, String value) {
+		if ("NULL".equals(value) || "null".equals(value)) {
+			return null;
+		}
+
+		if (kind == NUMBER) {
+			try {
+				return Long.valueOf(value);
+			} catch (NumberFormatException e) {
+				// let the database make what it can of it
+			}
+		} else if (kind == DATE) {
+			Timestamp timestamp = toTimestamp(value);
+
+			if (timestamp != null) {
+				return timestamp;
+			}
+		}
+
+		return value;
+	}
+
+	private void bind(int parameter, int kind, Object value) throws SQLException {
+		if (value == null) {
+			statement.setNull(parameter, kind == NUMBER ? Types.BIGINT : (kind == DATE ? Types.TIMESTAMP : Types.VARCHAR));
+		} else if (value instanceof Long) {
+			statement.setLong(parameter, ((Long) value).longValue());
+		} else if (value instanceof Timestamp) {
+			statement.setTimestamp(parameter, (Timestamp) value);
+		} else {
+			statement.setString(parameter, (String) value);
+		}
+	}
+
+	private void bindAll(RecordBatch batch) throws SQLException {
+		for (int r = 0; r < batch.size(); r++) {
+			for (int i = 0; i < batch.getColumnCount(); i++) {
+				int kind = batch.getKind(i);
+				String value = batch.getString(r, i);
+
+				if (batch.isNull(r, i)) {
+					statement.setNull(i + 1, kind == NUMBER ? Types.BIGINT : (kind == DATE ? Types.TIMESTAMP : Types.VARCHAR));
+				} else if (value != null) {
+					statement.setString(i + 1, value);
+				} else if (kind == NUMBER) {
+					statement.setLong(i + 1, batch.getLong(r, i));
+				} else {
+					statement.setTimestamp(i + 1, new Timestamp(batch.getLong(r, i)));
+				}
+			}
+
+			statement.addBatch();
+		}
+	}
+
+	/**
+	 * Converts a date as normalized by the parser ("2009-06-21" or "2005-09-06-00:00:00") to a timestamp, or returns null if it has some other shape.
+	 */
+	static Timestamp toTimestamp(String value) {
+		String str;
+
+		if (value.length() == 10) {
+			str = value + " 00:00:00";
+		} else if (value.length() == 19 && value.charAt(10) == '-') {
+			str = value.substring(0, 10) + " " + value.substring(11);
+		} else {
+			return null;
+		}
+
+		try {
+			return Timestamp.valueOf(str);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public void close() throws SQLException {
+		// the statement stays cached on the pooled connection for the next writer of this table
+		connection.disconnect();
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sizes the batches an {@link IngestPipeline} reads, from what its encoders and writers report back.
+ *
+ * Batches are capped in bytes rather than records, using the average encoded size of the records so far, so that tables of wide rows and tables of tiny
+ * rows both get batches near the cap. Under the cap, the size ramps up while batches take less than MIN_WRITE_MILLIS to write, since round-trips then
+ * dominate, and back down when they take more than MAX_WRITE_MILLIS, which holds up checkpoints and the other writers' queue.
+ *
+ * Safe to use from all the pipeline's threads.
+ */
+public class BatchSizer {
+
+	private static final Logger LOGGER = Logger.getLogger(BatchSizer.class);
+
+	/**
+	 * Cap on each batch's encoded size when the database doesn't impose a lower one; with the pipeline's queues this bounds the memory held by batches in
+	 * flight.
+	 */
+	public static final long DEFAULT_MAX_BATCH_BYTES = 16L * 1024 * 1024;
+
+	public static final long MIN_WRITE_MILLIS = 200;
+	public static final long MAX_WRITE_MILLIS = 2000;
+
+	private static final int MAX_BATCH_RECORDS = 200000;
+	private static final double GROWTH = 1.5;
+	private static final double SHRINKAGE = 0.5;
+	private static final double CAP_MARGIN = 0.9;
+
+	/**
+	 * Weight of the latest batch in the running average of bytes per record
+	 */
+	private static final double LATEST_WEIGHT = 0.2;
+
+	private long maxBytes;
+	private int batchSize;
+	private double bytesPerRecord = -1;
+
+	/**
+	 * initialSize is the number of records in the first batches, before any have been encoded or written; maxBytes is the most bytes a batch may encode to.
+	 */
+	public BatchSizer(int initialSize, long maxBytes) {
+		this.batchSize = Math.max(1, initialSize);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Number of records to read into the next batch.
+	 */
+	public synchronized int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Reports a batch of recordCount records that encoded to bytes bytes.
+	 */
+	public synchronized void encoded(int recordCount, long bytes) {
+		if (recordCount <= 0 || bytes <= 0) {
+			return;
+		}
+
+		double latest = (double) bytes / recordCount;
+		bytesPerRecord = (bytesPerRecord < 0 ? latest : LATEST_WEIGHT * latest + (1 - LATEST_WEIGHT) * bytesPerRecord);
+
+		if (batchSize > getLimit()) {
+			// leave some room below the cap, so the size isn't cut again each time the average wobbles
+			resize((int) (getLimit() * CAP_MARGIN));
+		}
+	}
+
+	/**
+	 * Reports a batch of recordCount records that took nanos nanoseconds to write.
+	 */
+	public synchronized void written(int recordCount, long nanos) {
+		long millis = nanos / 1000000;
+
+		// only batches of the current size say anything about it
+		if (recordCount != batchSize) {
+			return;
+		}
+
+		if (millis < MIN_WRITE_MILLIS) {
+			int grown = (int) Math.min(Math.ceil(batchSize * GROWTH), getLimit() * CAP_MARGIN);
+			if (grown > batchSize) {
+				resize(grown);
+			}
+		} else if (millis > MAX_WRITE_MILLIS) {
+			resize((int) (batchSize * SHRINKAGE));
+		}
+	}
+
+	/**
+	 * Returns the number of bytes value takes in UTF-8, counting unpaired surrogates as the one byte they're replaced with.
+	 */
+	public static long utf8Length(String value) {
+		long length = value.length();
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			if (c >= 0x800 && !Character.isSurrogate(c)) {
+				length += 2;
+			} else if (c >= 0x80 && c < 0x800) {
+				length += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+				length += 2; // 4 bytes for the pair
+				i++;
+			}
+		}
+
+		return length;
+	}
+
+	private int getLimit() {
+		return (int) (bytesPerRecord > 0 ? Math.min(MAX_BATCH_RECORDS, maxBytes / bytesPerRecord) : MAX_BATCH_RECORDS);
+	}
+
+	private void resize(int size) {
+		size = Math.max(1, Math.min(size, getLimit()));
+
+		if (size != batchSize) {
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug(String.format("Batch size %d -> %d records (~%.0f bytes each, cap %d bytes)", batchSize, size, bytesPerRecord, maxBytes));
+			}
+
+			batchSize = size;
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Parses the remainder of an EPF file on a pool of worker threads.
+ *
+ * The byte range left to parse is cut into chunks, each boundary moved forward to the start of the next record, and each chunk is parsed by one worker
+ * with its own {@link RecordScanner}. Records are handed back either in file order, or in whatever order the workers produce them.
+ *
+ * Either way, getLatestRecordNum() only counts the records that form an unbroken run from the start of the file, and getSeekPos() is the offset just after
+ * that run, so both are safe to resume from. When records are unordered, records beyond that run may already have been handed back as well.
+ */
+class ChunkedParser {
+
+	private static final Logger LOGGER = Logger.getLogger(ChunkedParser.class);
+
+	private static final int BATCH_SIZE = 1000;
+	private static final int QUEUE_DEPTH = 4;
+	private static final int CHUNKS_PER_THREAD = 4;
+	private static final long MIN_CHUNK_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Records parsed by a worker, together with the offset just after each one; the last batch of a chunk also carries the chunk's record count.
+	 */
+	private static class Batch {
+		int chunk;
+		List<List<String>> records = new ArrayList<List<String>>(BATCH_SIZE);
+		long[] ends = new long[BATCH_SIZE];
+		boolean last;
+		long total;
+
+		Batch(int chunk) {
+			this.chunk = chunk;
+		}
+	}
+
+	private Parser parser;
+	private boolean ordered;
+	private long baseRecordNum;
+	private long[] bounds;
+	private int chunkCount;
+	private ExecutorService executor;
+	private List<BlockingQueue<Batch>> queues;
+	private volatile Throwable failure;
+
+	// consumer-side bookkeeping
+	private Batch current;
+	private int currentIx;
+	private int chunksDone;
+	private long[] delivered;
+	private long[] totals;
+	private long[] lastEnds;
+	private int watermarkChunk;
+	private long watermarkRecords;
+	private int checkpointInterval;
+	private List<List<Long>> aheadEnds; // per chunk, the offset after every checkpointInterval-th record handed back while it was ahead of the watermark
+
+	/**
+	 * Starts parsing from offset startPos, which must be the start of a record; baseRecordNum is the number of records before it.
+	 */
+	ChunkedParser(Parser parser, RecordScanner scanner, long startPos, long baseRecordNum, int threads, boolean ordered) throws IOException {
+		this.parser = parser;
+		this.ordered = ordered;
+		this.baseRecordNum = baseRecordNum;
+
+		long end = scanner.length();
+		long chunks = Math.max(1, Math.min(threads * CHUNKS_PER_THREAD, (end - startPos) / MIN_CHUNK_SIZE));
+		long chunkSize = (end - startPos) / chunks;
+
+		// move each nominal boundary forward to the first record starting at or after it
+		List<Long> starts = new ArrayList<Long>();
+		starts.add(Long.valueOf(startPos));
+		for (long j = 1; j < chunks; j++) {
+			long nominal = startPos + j * chunkSize;
+			long previous = starts.get(starts.size() - 1).longValue();
+
+			scanner.seek(Math.max(previous, nominal - parser.getRecordDelim().length()));
+			scanner.nextRecord();
+			long boundary = scanner.position();
+
+			if (boundary > previous && boundary < end) {
+				starts.add(Long.valueOf(boundary));
+			}
+		}
+		scanner.seek(startPos);
+
+		this.chunkCount = starts.size();
+		this.bounds = new long[chunkCount + 1];
+		for (int j = 0; j < chunkCount; j++) {
+			bounds[j] = starts.get(j).longValue();
+		}
+		bounds[chunkCount] = end;
+
+		this.delivered = new long[chunkCount];
+		this.totals = new long[chunkCount];
+		this.lastEnds = new long[chunkCount];
+		for (int j = 0; j < chunkCount; j++) {
+			totals[j] = -1;
+		}
+
+		this.checkpointInterval = parser.getCheckpointInterval();
+		this.aheadEnds = new ArrayList<List<Long>>(chunkCount);
+		for (int j = 0; j < chunkCount; j++) {
+			aheadEnds.add(new ArrayList<Long>());
+		}
+
+		this.queues = new ArrayList<BlockingQueue<Batch>>();
+		if (ordered) {
+			for (int j = 0; j < chunkCount; j++) {
+				queues.add(new ArrayBlockingQueue<Batch>(QUEUE_DEPTH));
+			}
+		} else {
+			queues.add(new ArrayBlockingQueue<Batch>(QUEUE_DEPTH * threads));
+		}
+
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug(String.format("Parsing bytes %d to %d in %d chunks on %d threads", startPos, end, chunkCount, threads));
+		}
+
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat("epf-parser-%d").setDaemon(true).build());
+		for (int j = 0; j < chunkCount; j++) {
+			final int chunk = j;
+			executor.execute(new Runnable() {
+				public void run() {
+					parseChunk(chunk);
+				}
+			});
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Worker body: parses every record that starts inside the chunk.
+	 */
+	private void parseChunk(int chunk) {
+		RecordScanner scanner = null;
+		BlockingQueue<Batch> queue = queues.get(ordered ? chunk : 0);
+
+		try {
+			scanner = parser.openScanner();
+			scanner.seek(bounds[chunk]);
+
+			long count = 0;
+			Batch batch = new Batch(chunk);
+			while (scanner.position() < bounds[chunk + 1] && scanner.nextRecord()) {
+				if (scanner.isComment(parser.getCommentChar())) {
+					continue;
+				}
+
+				// records the row filter rejects are passed on as nulls, so that they're still counted
+				batch.ends[batch.records.size()] = scanner.position();
+				batch.records.add(parser.accepts(scanner) ? parser.buildRecord(scanner) : null);
+				count++;
+
+				if (batch.records.size() == BATCH_SIZE) {
+					queue.put(batch);
+					batch = new Batch(chunk);
+				}
+			}
+
+			batch.last = true;
+			batch.total = count;
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (Throwable e) {
+			failure = e;
+		} finally {
+			if (scanner != null) {
+				try {
+					scanner.close();
+				} catch (IOException e) {
+					LOGGER.error("Unable to close chunk scanner", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the next record, or null once every chunk has been consumed; records rejected by the parser's row filter are counted and skipped.
+	 */
+	List<String> nextRecord() throws IOException {
+		while (true) {
+			while (current == null || currentIx == current.records.size()) {
+				if (current != null && current.last) {
+					totals[current.chunk] = current.total;
+					chunksDone++;
+					advanceWatermark();
+				}
+
+				current = null;
+				currentIx = 0;
+
+				if (chunksDone == chunkCount) {
+					return null;
+				}
+
+				current = take();
+			}
+
+			int chunk = current.chunk;
+			List<String> rec = current.records.get(currentIx);
+			lastEnds[chunk] = current.ends[currentIx];
+			delivered[chunk]++;
+			currentIx++;
+
+			if (chunk > watermarkChunk && checkpointInterval > 0 && delivered[chunk] % checkpointInterval == 0) {
+				aheadEnds.get(chunk).add(Long.valueOf(lastEnds[chunk]));
+			}
+
+			advanceWatermark();
+
+			if (watermarkChunk == chunk) {
+				parser.recordCheckpoint(getLatestRecordNum(), getSeekPos());
+			}
+
+			if (rec != null) {
+				return rec;
+			}
+		}
+	}
+
+	private Batch take() throws IOException {
+		BlockingQueue<Batch> queue = queues.get(ordered ? chunksDone : 0);
+
+		try {
+			while (true) {
+				Batch batch = queue.poll(100, TimeUnit.MILLISECONDS);
+
+				if (batch != null) {
+					return batch;
+				}
+
+				if (failure != null) {
+					throw new IOException("Parser worker failed", failure);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for parsed records", e);
+		}
+	}
+
+	/**
+	 * Moves the watermark past every chunk that has been handed back in full. Each chunk it reaches now has a known first record number, so the checkpoints
+	 * kept while that chunk was ahead of the watermark can go into the record index.
+	 */
+	private void advanceWatermark() {
+		while (watermarkChunk < chunkCount && totals[watermarkChunk] >= 0 && delivered[watermarkChunk] == totals[watermarkChunk]) {
+			watermarkRecords += totals[watermarkChunk];
+			watermarkChunk++;
+
+			if (watermarkChunk < chunkCount && checkpointInterval > 0) {
+				long base = baseRecordNum + watermarkRecords;
+				parser.recordCheckpoint(base, bounds[watermarkChunk]);
+
+				List<Long> ends = aheadEnds.get(watermarkChunk);
+				for (int k = 0; k < ends.size(); k++) {
+					parser.recordCheckpoint(base + (k + 1) * (long) checkpointInterval, ends.get(k).longValue());
+				}
+				ends.clear();
+			}
+		}
+	}
+
+	/**
+	 * Number of records, counted from the start of the file, that have all been handed back.
+	 */
+	long getLatestRecordNum() {
+		return baseRecordNum + watermarkRecords + (watermarkChunk < chunkCount ? delivered[watermarkChunk] : 0);
+	}
+
+	/**
+	 * Offset just after the last of the records counted by getLatestRecordNum().
+	 */
+	long getSeekPos() {
+		if (watermarkChunk == chunkCount) {
+			return bounds[chunkCount];
+		}
+
+		return delivered[watermarkChunk] > 0 ? lastEnds[watermarkChunk] : bounds[watermarkChunk];
+	}
+
+	/**
+	 * Stops the workers; records not yet handed back are discarded.
+	 */
+	void stop() {
+		executor.shutdownNow();
+	}
+}
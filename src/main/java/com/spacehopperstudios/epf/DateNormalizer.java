@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.util.TimeZone;
+
+/**
+ * Normalizes the dates of EPF files into MySQL-compatible format straight from a {@link RecordScanner}'s bytes, without allocating anything per field.
+ *
+ * Most date values look like '2009 06 21'; some are '2005-09-06-00:00:00-Etc/GMT', and some are only a year. They come out as '2009-06-21',
+ * '2005-09-06-00:00:00' and '2009-01-01' respectively, the same as {@link Parser#normalizeDate(String)} makes of them. The normalized date is held in a
+ * reusable buffer, from which it can be read as epoch milliseconds or as a string; strings are kept in a small cache, since a file's dates repeat a lot.
+ *
+ * Not thread-safe; the parser keeps one per thread.
+ */
+public class DateNormalizer {
+
+	private static final int MAX_LENGTH = 19;
+	private static final int CACHE_SIZE = 256;
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private char[] chars = new char[MAX_LENGTH + 6];
+	private int length;
+	private String[] cache = new String[CACHE_SIZE];
+
+	/**
+	 * Normalizes field i of the record recordScanner is on (splitFields() must have been called), returning false if it holds anything but ASCII, which is
+	 * left to Parser.normalizeDate().
+	 */
+	public boolean normalize(RecordScanner recordScanner, int i) {
+		int from = 0;
+		int to = recordScanner.fieldLength(i);
+
+		while (from < to && isWhitespace(recordScanner.fieldByte(i, from))) {
+			from++;
+		}
+
+		while (to > from && isWhitespace(recordScanner.fieldByte(i, to - 1))) {
+			to--;
+		}
+
+		length = Math.min(to - from, MAX_LENGTH); // Include at most the first 19 chars
+		boolean year = (length == 4);
+
+		for (int k = 0; k < length; k++) {
+			byte b = recordScanner.fieldByte(i, from + k);
+
+			if (b < 0) {
+				return false;
+			}
+
+			chars[k] = (b == ' ' ? '-' : (char) b);
+			year &= (b >= '0' && b <= '9');
+		}
+
+		if (year) {
+			// there are also some cases where there's only a year; we'll pad it out with a bogus month/day
+			"-01-01".getChars(0, 6, chars, 4);
+			length = 10;
+		}
+
+		return true;
+	}
+
+	/**
+	 * The normalized date as a string.
+	 */
+	public String getString() {
+		int hash = 0;
+		for (int k = 0; k < length; k++) {
+			hash = 31 * hash + chars[k];
+		}
+
+		int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+		String cached = cache[slot];
+
+		if (cached != null && cached.length() == length) {
+			int k = 0;
+			while (k < length && cached.charAt(k) == chars[k]) {
+				k++;
+			}
+
+			if (k == length) {
+				return cached;
+			}
+		}
+
+		cached = new String(chars, 0, length);
+		cache[slot] = cached;
+		return cached;
+	}
+
+	/**
+	 * Compares the normalized date with a normalized date in ASCII bytes, as strings.
+	 */
+	int compareTo(byte[] date) {
+		int common = Math.min(length, date.length);
+
+		for (int k = 0; k < common; k++) {
+			int diff = chars[k] - date[k];
+
+			if (diff != 0) {
+				return diff;
+			}
+		}
+
+		return length - date.length;
+	}
+
+	/**
+	 * The normalized date as milliseconds since the epoch, reading it in the default time zone as Timestamp.valueOf() would, or Long.MIN_VALUE if it isn't a
+	 * valid date.
+	 */
+	public long getEpochMillis() {
+		return toEpochMillis(chars, length);
+	}
+
+	/**
+	 * Reads a normalized date ('2009-06-21' or '2005-09-06-00:00:00') held in the first length chars as milliseconds since the epoch, in the default time
+	 * zone as Timestamp.valueOf() would, returning Long.MIN_VALUE if it isn't a valid date.
+	 */
+	public static long toEpochMillis(char[] chars, int length) {
+		if (length != 10 && length != MAX_LENGTH) {
+			return Long.MIN_VALUE;
+		}
+
+		if (chars[4] != '-' || chars[7] != '-') {
+			return Long.MIN_VALUE;
+		}
+
+		int year = digits(chars, 0, 4);
+		int month = digits(chars, 5, 2);
+		int day = digits(chars, 8, 2);
+		int hour = 0;
+		int minute = 0;
+		int second = 0;
+
+		if (length == MAX_LENGTH) {
+			if (chars[10] != '-' || chars[13] != ':' || chars[16] != ':') {
+				return Long.MIN_VALUE;
+			}
+
+			hour = digits(chars, 11, 2);
+			minute = digits(chars, 14, 2);
+			second = digits(chars, 17, 2);
+		}
+
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+			return Long.MIN_VALUE;
+		}
+
+		long wallClock = daysFromCivil(year, month, day) * MILLIS_PER_DAY + ((hour * 60L + minute) * 60 + second) * 1000;
+		TimeZone zone = TimeZone.getDefault();
+		int offset = zone.getOffset(wallClock - zone.getRawOffset());
+		if (zone.getOffset(wallClock - offset) != offset) {
+			offset = zone.getRawOffset(); // a time skipped by a daylight saving change, which Timestamp.valueOf() reads as standard time
+		}
+
+		return wallClock - offset;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b >= 0 && b <= ' ';
+	}
+
+	/**
+	 * Returns the value of count decimal digits starting at from, or -1 if they aren't all digits.
+	 */
+	private static int digits(char[] chars, int from, int count) {
+		int value = 0;
+
+		for (int i = from; i < from + count; i++) {
+			int digit = chars[i] - '0';
+
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	/**
+	 * Days from 1970-01-01 to the given date of the proleptic Gregorian calendar.
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = (month <= 2 ? year - 1 : year);
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+}
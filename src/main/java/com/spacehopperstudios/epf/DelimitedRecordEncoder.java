@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes records as UTF-8, tab-delimited, newline-terminated rows, in the text format read by both Postgres's COPY and MySQL's LOAD DATA (with their
+ * default options).
+ *
+ * NULLs are written as \N, and backslashes, tabs, newlines and carriage returns inside values are backslash-escaped. Dates are written with a space
+ * between the date and the time, which both servers accept.
+ *
+ * An encoder holds no state between calls, so one instance can encode batches on several threads at once.
+ */
+public class DelimitedRecordEncoder {
+
+	/**
+	 * Growable byte array that a single batch is encoded into.
+	 */
+	private static class Buffer {
+		byte[] bytes = new byte[64 * 1024];
+		int length;
+
+		void put(byte b) {
+			if (length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, length * 2);
+			}
+
+			bytes[length++] = b;
+		}
+	}
+
+	private boolean[] dateColumns;
+
+	public DelimitedRecordEncoder(Parser parser) {
+		this.dateColumns = new boolean[parser.getColumnNames().size()];
+		for (Integer j : parser.getDateColumns()) {
+			if (j.intValue() < dateColumns.length) {
+				dateColumns[j.intValue()] = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the encoded rows.
+	 */
+	public byte[] encode(List<List<String>> records) {
+		Buffer buffer = new Buffer();
+
+		for (List<String> aRecord : records) {
+			for (int i = 0; i < aRecord.size(); i++) {
+				if (i > 0) {
+					buffer.put((byte) '\t');
+				}
+
+				String value = aRecord.get(i);
+				if ("NULL".equals(value) || "null".equals(value)) {
+					buffer.put((byte) '\\');
+					buffer.put((byte) 'N');
+				} else if (dateColumns[i] && value.length() == 19 && value.charAt(10) == '-') {
+					// '2005-09-06-00:00:00' -> '2005-09-06 00:00:00'
+					putEscaped(buffer, value, 0, 10);
+					buffer.put((byte) ' ');
+					putEscaped(buffer, value, 11, 19);
+				} else {
+					putEscaped(buffer, value, 0, value.length());
+				}
+			}
+
+			buffer.put((byte) '\n');
+		}
+
+		return Arrays.copyOf(buffer.bytes, buffer.length);
+	}
+
+	private static void putEscaped(Buffer buffer, String value, int from, int to) {
+		for (int i = from; i < to; i++) {
+			char c = value.charAt(i);
+
+			if (c < 0x80) {
+				switch (c) {
+				case '\\':
+					buffer.put((byte) '\\');
+					buffer.put((byte) '\\');
+					break;
+				case '\t':
+					buffer.put((byte) '\\');
+					buffer.put((byte) 't');
+					break;
+				case '\n':
+					buffer.put((byte) '\\');
+					buffer.put((byte) 'n');
+					break;
+				case '\r':
+					buffer.put((byte) '\\');
+					buffer.put((byte) 'r');
+					break;
+				default:
+					buffer.put((byte) c);
+				}
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xc0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buffer.put((byte) (0xf0 | (cp >> 18)));
+				buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (cp & 0x3f)));
+			} else if (Character.isSurrogate(c)) {
+				buffer.put((byte) '?'); // unpaired surrogate; not representable in UTF-8
+			} else {
+				buffer.put((byte) (0xe0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+}
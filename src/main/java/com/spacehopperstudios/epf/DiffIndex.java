@@ -0,0 +1,481 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compact on-disk hash table of what a table holds, by primary key: the hash of each row's values and its export_date, so that a new file can be diffed
+ * against the table without querying it (see {@link RowDiff}).
+ *
+ * An index is two files in the diff index directory, named after the table: a .diff file of fixed-size slots, memory-mapped and addressed by the hash of
+ * the primary key, and a .keys log of the keys themselves, which are only read back to delete rows a full file no longer has. Slots hold
+ *
+ * <pre>
+ * key hash (0 if the slot is empty), row hash, export_date, offset of the key in the log
+ * </pre>
+ *
+ * An index is only ever changed as a copy (or built afresh) under temporary names, which commit() moves over the committed index once the table has been
+ * changed to match, so a failed import leaves the last good one behind. While a file is being applied, the committed index holds a hash of its path as a
+ * pending mark: applying that same file again is safe, but anything else finds the table changed under the index and must discard it.
+ */
+public class DiffIndex {
+
+	private static final Logger LOGGER = Logger.getLogger(DiffIndex.class);
+
+	private static final int MAGIC = 0x45504644; // "EPFD"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int SIGNATURE_OFFSET = 8;
+	private static final int CAPACITY_OFFSET = 16;
+	private static final int SIZE_OFFSET = 24;
+	private static final int PENDING_OFFSET = 32;
+	private static final int KEYS_LENGTH_OFFSET = 40;
+
+	private static final int SLOT_SIZE = 32;
+	private static final int SEGMENT_BITS = 25; // slots per mapping, 1 GB of them; a MappedByteBuffer can't address more than 2 GB
+	private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+	private static final double MAX_LOAD = 0.75;
+	private static final double INITIAL_LOAD = 0.6; // leaves room for the keys later incrementals add
+	private static final long MIN_CAPACITY = 1024;
+
+	private static final String SLOTS_SUFFIX = ".diff";
+	private static final String KEYS_SUFFIX = ".keys";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private File slotsPath;
+	private File keysPath;
+	private File committedSlotsPath; // null for a committed index
+	private File committedKeysPath;
+	private boolean writable;
+
+	private RandomAccessFile slotsFile;
+	private MappedByteBuffer[] segments;
+	private long capacity;
+	private long size;
+	private long signature;
+	private long pending;
+
+	private RandomAccessFile keysFile;
+	private OutputStream keysOut; // appends to the log of a writable index
+	private long keysLength;
+
+	private DiffIndex(File slotsPath, File keysPath, boolean writable) {
+		this.slotsPath = slotsPath;
+		this.keysPath = keysPath;
+		this.writable = writable;
+	}
+
+	/**
+	 * Opens the committed index of tableName in directory, read-only but for its pending mark; returns null if there isn't one, or it can't be read.
+	 */
+	public static DiffIndex open(File directory, String tableName) {
+		File slotsPath = new File(directory, tableName + SLOTS_SUFFIX);
+		File keysPath = new File(directory, tableName + KEYS_SUFFIX);
+
+		if (!slotsPath.isFile() || !keysPath.isFile()) {
+			return null;
+		}
+
+		DiffIndex index = new DiffIndex(slotsPath, keysPath, false);
+
+		try {
+			index.slotsFile = new RandomAccessFile(slotsPath, "rw");
+
+			if (index.slotsFile.length() < HEADER_SIZE || index.slotsFile.readInt() != MAGIC || index.slotsFile.readInt() != VERSION) {
+				LOGGER.warn(String.format("Ignoring unreadable diff index %s", slotsPath.getPath()));
+				index.close();
+				return null;
+			}
+
+			index.signature = index.slotsFile.readLong();
+			index.capacity = index.slotsFile.readLong();
+			index.size = index.slotsFile.readLong();
+			index.pending = index.slotsFile.readLong();
+			index.keysLength = index.slotsFile.readLong();
+
+			if (index.slotsFile.length() < HEADER_SIZE + index.capacity * SLOT_SIZE || keysPath.length() < index.keysLength) {
+				LOGGER.warn(String.format("Ignoring truncated diff index %s", slotsPath.getPath()));
+				index.close();
+				return null;
+			}
+
+			index.map();
+			index.keysFile = new RandomAccessFile(keysPath, "r");
+			return index;
+		} catch (IOException e) {
+			LOGGER.warn(String.format("Unable to use diff index %s", slotsPath.getPath()), e);
+			index.close();
+			return null;
+		}
+	}
+
+	/**
+	 * Starts a new, empty index of tableName in directory, with room for expectedRows rows before it has to grow; it replaces the committed one on
+	 * commit().
+	 */
+	public static DiffIndex create(File directory, String tableName, long expectedRows, long signature) throws IOException {
+		File committedSlotsPath = new File(directory, tableName + SLOTS_SUFFIX);
+		File committedKeysPath = new File(directory, tableName + KEYS_SUFFIX);
+		DiffIndex index = new DiffIndex(new File(directory, tableName + SLOTS_SUFFIX + TMP_SUFFIX), new File(directory, tableName + KEYS_SUFFIX + TMP_SUFFIX), true);
+		index.committedSlotsPath = committedSlotsPath;
+		index.committedKeysPath = committedKeysPath;
+		index.signature = signature;
+
+		try {
+			index.capacity = capacityFor(expectedRows);
+			index.slotsFile = new RandomAccessFile(index.slotsPath, "rw");
+			index.slotsFile.setLength(0);
+			index.slotsFile.setLength(HEADER_SIZE + index.capacity * SLOT_SIZE);
+			index.map();
+
+			index.keysFile = new RandomAccessFile(index.keysPath, "rw");
+			index.keysFile.setLength(0);
+			index.keysOut = new BufferedOutputStream(new FileOutputStream(index.keysPath, true), 64 * 1024);
+		} catch (IOException e) {
+			index.discard();
+			throw e;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Returns a writable copy of this committed index, which replaces it on commit().
+	 */
+	public DiffIndex copy() throws IOException {
+		File parent = slotsPath.getParentFile();
+		DiffIndex index = new DiffIndex(new File(parent, slotsPath.getName() + TMP_SUFFIX), new File(parent, keysPath.getName() + TMP_SUFFIX), true);
+		index.committedSlotsPath = slotsPath;
+		index.committedKeysPath = keysPath;
+		index.signature = signature;
+		index.capacity = capacity;
+		index.size = size;
+		index.pending = pending;
+		index.keysLength = keysLength;
+
+		try {
+			copyFile(slotsPath, index.slotsPath, HEADER_SIZE + capacity * SLOT_SIZE);
+			copyFile(keysPath, index.keysPath, keysLength);
+
+			index.slotsFile = new RandomAccessFile(index.slotsPath, "rw");
+			index.map();
+			index.keysFile = new RandomAccessFile(index.keysPath, "rw");
+			index.keysOut = new BufferedOutputStream(new FileOutputStream(index.keysPath, true), 64 * 1024);
+		} catch (IOException e) {
+			index.discard();
+			throw e;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Deletes the committed index of tableName in directory, if it has one.
+	 */
+	public static void delete(File directory, String tableName) {
+		File slotsPath = new File(directory, tableName + SLOTS_SUFFIX);
+		File keysPath = new File(directory, tableName + KEYS_SUFFIX);
+
+		// without its slots, the key log is never read
+		if ((slotsPath.exists() && !slotsPath.delete()) || (keysPath.exists() && !keysPath.delete())) {
+			LOGGER.warn(String.format("Unable to delete diff index %s", slotsPath.getPath()));
+		}
+	}
+
+	private static long capacityFor(long rows) {
+		return Math.max(MIN_CAPACITY, (long) (Math.max(0, rows) / INITIAL_LOAD) + 1);
+	}
+
+	private static void copyFile(File from, File to, long length) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to);
+
+		try {
+			FileChannel source = in.getChannel();
+			FileChannel target = out.getChannel();
+			long position = 0;
+
+			while (position < length) {
+				position += source.transferTo(position, length - position, target);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	private void map() throws IOException {
+		FileChannel channel = slotsFile.getChannel();
+		segments = new MappedByteBuffer[(int) ((capacity + SEGMENT_MASK) >> SEGMENT_BITS)];
+
+		for (int s = 0; s < segments.length; s++) {
+			long first = (long) s << SEGMENT_BITS;
+			long slots = Math.min(capacity - first, 1L << SEGMENT_BITS);
+			segments[s] = channel.map(writable ? MapMode.READ_WRITE : MapMode.READ_ONLY, HEADER_SIZE + first * SLOT_SIZE, slots * SLOT_SIZE);
+		}
+	}
+
+	public long getSignature() {
+		return signature;
+	}
+
+	/**
+	 * The hash of the path of the file being applied to the table, or 0 if the index matches the table.
+	 */
+	public long getPending() {
+		return pending;
+	}
+
+	/**
+	 * Marks (or, with 0, unmarks) the committed index as having a file applied to its table, writing the mark to disk straight away.
+	 */
+	public void setPending(long pending) throws IOException {
+		this.pending = pending;
+		slotsFile.seek(PENDING_OFFSET);
+		slotsFile.writeLong(pending);
+		slotsFile.getFD().sync();
+	}
+
+	/**
+	 * Number of keys in the index.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Number of slots; slots are numbered from 0.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the slot holding keyHash, or -1 if the index doesn't have it. keyHash must not be 0.
+	 */
+	public long find(long keyHash) {
+		long slot = home(keyHash);
+
+		while (true) {
+			long stored = getLong(slot, 0);
+
+			if (stored == keyHash) {
+				return slot;
+			} else if (stored == 0) {
+				return -1;
+			}
+
+			slot = (slot + 1 == capacity ? 0 : slot + 1);
+		}
+	}
+
+	/**
+	 * The key hash in slot, or 0 if it is empty.
+	 */
+	public long getKeyHash(long slot) {
+		return getLong(slot, 0);
+	}
+
+	public long getRowHash(long slot) {
+		return getLong(slot, 8);
+	}
+
+	public long getExportDate(long slot) {
+		return getLong(slot, 16);
+	}
+
+	/**
+	 * Replaces the row hash and export_date of the key in slot.
+	 */
+	public void update(long slot, long rowHash, long exportDate) {
+		putLong(slot, 8, rowHash);
+		putLong(slot, 16, exportDate);
+	}
+
+	/**
+	 * Adds a key that find() doesn't have, with length bytes of key to log for it.
+	 */
+	public void add(long keyHash, long rowHash, long exportDate, byte[] key, int length) throws IOException {
+		if (size + 1 > capacity * MAX_LOAD) {
+			grow();
+		}
+
+		long offset = keysLength;
+		keysOut.write(length >>> 24);
+		keysOut.write(length >>> 16);
+		keysOut.write(length >>> 8);
+		keysOut.write(length);
+		keysOut.write(key, 0, length);
+		keysLength += 4 + length;
+
+		insert(keyHash, rowHash, exportDate, offset);
+		size++;
+	}
+
+	/**
+	 * Reads back the key logged for slot.
+	 */
+	public byte[] readKey(long slot) throws IOException {
+		if (keysOut != null) {
+			keysOut.flush();
+		}
+
+		long offset = getLong(slot, 24);
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		readFully(lengthBuffer, offset);
+
+		ByteBuffer key = ByteBuffer.allocate(lengthBuffer.getInt(0));
+		readFully(key, offset + 4);
+		return key.array();
+	}
+
+	private void readFully(ByteBuffer buffer, long offset) throws IOException {
+		FileChannel channel = keysFile.getChannel();
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new IOException(String.format("Diff index %s is truncated", keysPath.getPath()));
+			}
+		}
+	}
+
+	private long home(long keyHash) {
+		return (keyHash & Long.MAX_VALUE) % capacity;
+	}
+
+	private void insert(long keyHash, long rowHash, long exportDate, long keyOffset) {
+		long slot = home(keyHash);
+
+		while (getLong(slot, 0) != 0) {
+			slot = (slot + 1 == capacity ? 0 : slot + 1);
+		}
+
+		putLong(slot, 0, keyHash);
+		putLong(slot, 8, rowHash);
+		putLong(slot, 16, exportDate);
+		putLong(slot, 24, keyOffset);
+	}
+
+	/**
+	 * Rehashes into twice as many slots, for files with more rows than expected.
+	 */
+	private void grow() throws IOException {
+		MappedByteBuffer[] oldSegments = segments;
+		long oldCapacity = capacity;
+		RandomAccessFile oldFile = slotsFile;
+		File grownPath = new File(slotsPath.getPath() + ".grow");
+
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug(String.format("Growing diff index %s to %d slots", slotsPath.getPath(), oldCapacity * 2));
+		}
+
+		slotsFile = new RandomAccessFile(grownPath, "rw");
+		slotsFile.setLength(0);
+		slotsFile.setLength(HEADER_SIZE + oldCapacity * 2 * SLOT_SIZE);
+		capacity = oldCapacity * 2;
+		map();
+
+		for (long slot = 0; slot < oldCapacity; slot++) {
+			MappedByteBuffer segment = oldSegments[(int) (slot >> SEGMENT_BITS)];
+			int position = (int) (slot & SEGMENT_MASK) * SLOT_SIZE;
+			long keyHash = segment.getLong(position);
+
+			if (keyHash != 0) {
+				insert(keyHash, segment.getLong(position + 8), segment.getLong(position + 16), segment.getLong(position + 24));
+			}
+		}
+
+		oldFile.close();
+		if (!slotsPath.delete() || !grownPath.renameTo(slotsPath)) {
+			throw new IOException(String.format("Unable to replace %s with %s", slotsPath.getPath(), grownPath.getPath()));
+		}
+	}
+
+	private long getLong(long slot, int field) {
+		return segments[(int) (slot >> SEGMENT_BITS)].getLong((int) (slot & SEGMENT_MASK) * SLOT_SIZE + field);
+	}
+
+	private void putLong(long slot, int field, long value) {
+		segments[(int) (slot >> SEGMENT_BITS)].putLong((int) (slot & SEGMENT_MASK) * SLOT_SIZE + field, value);
+	}
+
+	/**
+	 * Writes out a writable index and moves it over the committed one.
+	 *
+	 * The committed slots go first, so a crash part way through leaves no index rather than slots pointing into the wrong key log.
+	 */
+	public void commit() throws IOException {
+		keysOut.close();
+		keysOut = null;
+
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+
+		slotsFile.seek(0);
+		slotsFile.writeInt(MAGIC);
+		slotsFile.writeInt(VERSION);
+		slotsFile.writeLong(signature);
+		slotsFile.writeLong(capacity);
+		slotsFile.writeLong(size);
+		slotsFile.writeLong(0); // pending
+		slotsFile.writeLong(keysLength);
+		slotsFile.getFD().sync();
+		keysFile.getFD().sync();
+		close();
+
+		if ((committedSlotsPath.exists() && !committedSlotsPath.delete()) || (committedKeysPath.exists() && !committedKeysPath.delete())
+				|| !keysPath.renameTo(committedKeysPath) || !slotsPath.renameTo(committedSlotsPath)) {
+			throw new IOException(String.format("Unable to replace diff index %s", committedSlotsPath.getPath()));
+		}
+	}
+
+	/**
+	 * Closes a writable index without committing it, and deletes its files.
+	 */
+	public void discard() {
+		close();
+
+		if ((slotsPath.exists() && !slotsPath.delete()) || (keysPath.exists() && !keysPath.delete())) {
+			LOGGER.warn(String.format("Unable to delete %s", slotsPath.getPath()));
+		}
+	}
+
+	public void close() {
+		segments = null;
+
+		try {
+			if (keysOut != null) {
+				keysOut.close();
+				keysOut = null;
+			}
+
+			if (keysFile != null) {
+				keysFile.close();
+				keysFile = null;
+			}
+
+			if (slotsFile != null) {
+				slotsFile.close();
+				slotsFile = null;
+			}
+		} catch (IOException e) {
+			LOGGER.error(String.format("Error closing diff index %s", slotsPath.getPath()), e);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link RecordScanner} reading the file through a large heap buffer, so that each read fetches many records at once.
+ */
+public class FileRecordScanner extends RecordScanner {
+
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long length;
+
+	public FileRecordScanner(String filePath, String recordDelim, String fieldDelim) throws IOException {
+		this(filePath, recordDelim, fieldDelim, DEFAULT_BUFFER_SIZE);
+	}
+
+	public FileRecordScanner(String filePath, String recordDelim, String fieldDelim, int bufferSize) throws IOException {
+		super(recordDelim, fieldDelim);
+
+		this.file = new RandomAccessFile(filePath, "r");
+		this.channel = file.getChannel();
+		this.length = channel.size();
+		this.window = ByteBuffer.allocate(bufferSize);
+		this.windowOffset = 0;
+		this.windowLimit = 0;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	protected void fill(long offset, int minBytes) throws IOException {
+		if (minBytes > window.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(minBytes);
+			window.clear();
+			window.limit(windowLimit);
+			larger.put(window);
+			window = larger;
+		}
+
+		// keep whatever part of the current window is still wanted, and read the rest
+		int keep = 0;
+		if (offset >= windowOffset && offset < windowOffset + windowLimit) {
+			int from = (int) (offset - windowOffset);
+			keep = windowLimit - from;
+			window.clear();
+			window.position(from);
+			window.limit(windowLimit);
+			window.compact();
+		}
+
+		window.clear();
+		window.position(keep);
+
+		long readAt = offset + keep;
+		while (window.hasRemaining() && readAt < length) {
+			int read = channel.read(window, readAt);
+
+			if (read < 0) {
+				break;
+			}
+
+			readAt += read;
+		}
+
+		windowOffset = offset;
+		windowLimit = window.position();
+		window.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+}
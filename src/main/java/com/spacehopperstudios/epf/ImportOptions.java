@@ -0,0 +1,285 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tuning options for an import, handed by {@link Program} to each {@link Ingester} and its {@link Parser}.
+ *
+ * The defaults reproduce the original behaviour.
+ */
+public class ImportOptions {
+
+	/**
+	 * How records are sent to the database.
+	 */
+	public enum WriteMode {
+		/**
+		 * Multi-row statements with the values escaped into the SQL text
+		 */
+		STATEMENT,
+		/**
+		 * A parameterized statement executed in JDBC batches
+		 */
+		BATCH,
+		/**
+		 * The backend's bulk loading command (COPY on Postgres, LOAD DATA on MySQL), falling back to BATCH where it can't be used
+		 */
+		BULK
+	}
+
+	public static final long DEFAULT_BIG_FILE_SIZE = 1024L * 1024 * 1024;
+
+	private long memoryMapThreshold = -1;
+	private int parseThreads = 1;
+	private int decompressThreads = 1;
+	private boolean parseOrdered = true;
+	private int recordIndexInterval = RecordIndex.DEFAULT_INTERVAL;
+	private WriteMode writeMode = WriteMode.STATEMENT;
+	private int encodeThreads = 1;
+	private int writeThreads = 1;
+	private int pipelineDepth = 4;
+	private int importThreads = 1;
+	private long bigFileSize = DEFAULT_BIG_FILE_SIZE;
+	private int maxBigFiles = 0;
+	private boolean deferIndexes = false;
+	private boolean upsertIncrementals = false;
+	private IncrementalStats incrementalStats;
+	private boolean adaptiveBatches = false;
+	private Map<String, List<List<String>>> secondaryIndexes = new HashMap<String, List<List<String>>>();
+	private Map<String, List<String>> projectedColumns = new HashMap<String, List<String>>();
+	private Map<String, String> rowFilters = new HashMap<String, String>();
+	private String diffIndexDirectory;
+
+	/**
+	 * Files of at least this many bytes are memory-mapped rather than read through a buffer; negative disables memory-mapping.
+	 */
+	public long getMemoryMapThreshold() {
+		return memoryMapThreshold;
+	}
+
+	public void setMemoryMapThreshold(long memoryMapThreshold) {
+		this.memoryMapThreshold = memoryMapThreshold;
+	}
+
+	/**
+	 * Number of threads parsing each file; above 1, the file is cut into byte ranges that are parsed concurrently.
+	 */
+	public int getParseThreads() {
+		return parseThreads;
+	}
+
+	public void setParseThreads(int parseThreads) {
+		this.parseThreads = parseThreads;
+	}
+
+	/**
+	 * Number of threads decompressing a .tbz archive being imported; above 1, its bzip2 blocks are decoded concurrently (see ParallelBzip2InputStream).
+	 */
+	public int getDecompressThreads() {
+		return decompressThreads;
+	}
+
+	public void setDecompressThreads(int decompressThreads) {
+		this.decompressThreads = decompressThreads;
+	}
+
+	/**
+	 * Whether records parsed in parallel are handed back in file order.
+	 */
+	public boolean isParseOrdered() {
+		return parseOrdered;
+	}
+
+	public void setParseOrdered(boolean parseOrdered) {
+		this.parseOrdered = parseOrdered;
+	}
+
+	/**
+	 * Number of records between checkpoints of the side-car record index; 0 disables the index.
+	 */
+	public int getRecordIndexInterval() {
+		return recordIndexInterval;
+	}
+
+	public void setRecordIndexInterval(int recordIndexInterval) {
+		this.recordIndexInterval = recordIndexInterval;
+	}
+
+	public WriteMode getWriteMode() {
+		return writeMode;
+	}
+
+	public void setWriteMode(WriteMode writeMode) {
+		this.writeMode = writeMode;
+	}
+
+	/**
+	 * Whether batches are sized from their encoded size and how long they take to write (see BatchSizer) rather than fixed by the write mode.
+	 */
+	public boolean isAdaptiveBatches() {
+		return adaptiveBatches;
+	}
+
+	public void setAdaptiveBatches(boolean adaptiveBatches) {
+		this.adaptiveBatches = adaptiveBatches;
+	}
+
+	/**
+	 * Number of threads turning parsed records into what is sent to the database, between the parser and the writers.
+	 */
+	public int getEncodeThreads() {
+		return encodeThreads;
+	}
+
+	public void setEncodeThreads(int encodeThreads) {
+		this.encodeThreads = encodeThreads;
+	}
+
+	/**
+	 * Number of batches each queue of the ingest pipeline holds before the stage feeding it has to wait.
+	 */
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	/**
+	 * Number of connections batches are written to each table on, each by its own thread; incremental updates made in place always use one.
+	 */
+	public int getWriteThreads() {
+		return writeThreads;
+	}
+
+	public void setWriteThreads(int writeThreads) {
+		this.writeThreads = writeThreads;
+	}
+
+	/**
+	 * Number of files imported at once; each brings its own parser, pipeline and connections.
+	 */
+	public int getImportThreads() {
+		return importThreads;
+	}
+
+	public void setImportThreads(int importThreads) {
+		this.importThreads = importThreads;
+	}
+
+	/**
+	 * Files of at least this many bytes count as big, for getMaxBigFiles().
+	 */
+	public long getBigFileSize() {
+		return bigFileSize;
+	}
+
+	public void setBigFileSize(long bigFileSize) {
+		this.bigFileSize = bigFileSize;
+	}
+
+	/**
+	 * Most big files imported at once, so that they don't all load the database together; 0 for no limit.
+	 */
+	public int getMaxBigFiles() {
+		return maxBigFiles;
+	}
+
+	public void setMaxBigFiles(int maxBigFiles) {
+		this.maxBigFiles = maxBigFiles;
+	}
+
+	/**
+	 * Whether tables are populated without their primary key, which is then built in one pass once all the records are in.
+	 */
+	public boolean isDeferIndexes() {
+		return deferIndexes;
+	}
+
+	public void setDeferIndexes(boolean deferIndexes) {
+		this.deferIndexes = deferIndexes;
+	}
+
+	/**
+	 * Whether large incremental imports are applied to the existing table in place with an upsert, where the database supports it, rather than merged with
+	 * it into a new table.
+	 */
+	public boolean isUpsertIncrementals() {
+		return upsertIncrementals;
+	}
+
+	public void setUpsertIncrementals(boolean upsertIncrementals) {
+		this.upsertIncrementals = upsertIncrementals;
+	}
+
+	/**
+	 * Timings of previous incremental imports, used to choose how to apply the next; null if none are kept.
+	 */
+	public IncrementalStats getIncrementalStats() {
+		return incrementalStats;
+	}
+
+	public void setIncrementalStats(IncrementalStats incrementalStats) {
+		this.incrementalStats = incrementalStats;
+	}
+
+	/**
+	 * The secondary indexes to build on the table of the EPF file called fileName once it has been populated, each as its list of columns.
+	 */
+	public List<List<String>> getSecondaryIndexes(String fileName) {
+		List<List<String>> indexes = secondaryIndexes.get(fileName);
+		return indexes == null ? Collections.<List<String>> emptyList() : indexes;
+	}
+
+	public void addSecondaryIndex(String fileName, List<String> columns) {
+		List<List<String>> indexes = secondaryIndexes.get(fileName);
+
+		if (indexes == null) {
+			indexes = new ArrayList<List<String>>();
+			secondaryIndexes.put(fileName, indexes);
+		}
+
+		indexes.add(columns);
+	}
+
+	/**
+	 * The columns of the EPF file called fileName to import, or null to import all of them.
+	 */
+	public List<String> getProjectedColumns(String fileName) {
+		return projectedColumns.get(fileName);
+	}
+
+	public void setProjectedColumns(String fileName, List<String> columns) {
+		projectedColumns.put(fileName, columns);
+	}
+
+	/**
+	 * The filter (see RowFilter) the records of the EPF file called fileName must pass to be imported, or null to import all of them.
+	 */
+	public String getRowFilter(String fileName) {
+		return rowFilters.get(fileName);
+	}
+
+	public void setRowFilter(String fileName, String expression) {
+		rowFilters.put(fileName, expression);
+	}
+
+	/**
+	 * Directory of the tables' diff indexes (see DiffIndex), against which files are diffed so that only the rows that change are written; null keeps none.
+	 */
+	public String getDiffIndexDirectory() {
+		return diffIndexDirectory;
+	}
+
+	public void setDiffIndexDirectory(String diffIndexDirectory) {
+		this.diffIndexDirectory = diffIndexDirectory;
+	}
+}
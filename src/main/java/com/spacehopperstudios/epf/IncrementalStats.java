@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Timings of previous incremental imports, kept per table and per strategy in a json file, so that {@link Ingester} can pick the cheaper way of applying the
+ * next one.
+ *
+ * Each strategy's cost is kept as nanoseconds per row it had to process: per incremental record when updating in place, and per row of the merged table when
+ * merging. Recent runs weigh more than older ones.
+ */
+public class IncrementalStats {
+
+	private static final Logger LOGGER = Logger.getLogger(IncrementalStats.class);
+
+	public enum Strategy {
+		IN_PLACE, MERGE
+	}
+
+	private static final String KEY_NANOS_PER_ROW = "nanosPerRow";
+	private static final String KEY_RUNS = "runs";
+
+	/**
+	 * Weight of the latest run in the running average
+	 */
+	private static final double LATEST_WEIGHT = 0.5;
+
+	private String filePath;
+	private JsonObject tables;
+
+	private IncrementalStats(String filePath, JsonObject tables) {
+		this.filePath = filePath;
+		this.tables = tables;
+	}
+
+	/**
+	 * Reads the stats file at filePath, starting afresh if there isn't one (or it can't be read).
+	 */
+	public static IncrementalStats load(String filePath) {
+		JsonObject tables = null;
+
+		if (new File(filePath).exists()) {
+			FileReader reader = null;
+
+			try {
+				reader = new FileReader(filePath);
+				tables = (new JsonParser()).parse(reader).getAsJsonObject();
+			} catch (FileNotFoundException e) {
+				LOGGER.error(String.format("Error locating file %s", filePath), e);
+			} catch (JsonParseException e) {
+				LOGGER.warn(String.format("Ignoring unreadable incremental stats in %s", filePath), e);
+			} catch (IllegalStateException e) {
+				LOGGER.warn(String.format("Ignoring unreadable incremental stats in %s", filePath), e);
+			} finally {
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						LOGGER.error(String.format("Error closing file %s", filePath), e);
+					}
+				}
+			}
+		}
+
+		return new IncrementalStats(filePath, tables == null ? new JsonObject() : tables);
+	}
+
+	/**
+	 * Returns the average nanoseconds per row strategy took on tableName, or -1 if it has never been timed there.
+	 */
+	public synchronized double getNanosPerRow(String tableName, Strategy strategy) {
+		JsonObject timing = getTiming(tableName, strategy, false);
+		return timing == null ? -1 : timing.get(KEY_NANOS_PER_ROW).getAsDouble();
+	}
+
+	/**
+	 * Returns how many runs of strategy on tableName the average is made of.
+	 */
+	public synchronized int getRuns(String tableName, Strategy strategy) {
+		JsonObject timing = getTiming(tableName, strategy, false);
+		return timing == null ? 0 : timing.get(KEY_RUNS).getAsInt();
+	}
+
+	/**
+	 * Adds a run of strategy on tableName which processed rows rows in millis milliseconds, and saves the file.
+	 */
+	public synchronized void record(String tableName, Strategy strategy, long rows, long millis) {
+		if (rows <= 0) {
+			return;
+		}
+
+		double nanosPerRow = millis * 1000000.0 / rows;
+		JsonObject timing = getTiming(tableName, strategy, true);
+
+		if (timing.has(KEY_NANOS_PER_ROW)) {
+			nanosPerRow = LATEST_WEIGHT * nanosPerRow + (1 - LATEST_WEIGHT) * timing.get(KEY_NANOS_PER_ROW).getAsDouble();
+		}
+
+		timing.add(KEY_NANOS_PER_ROW, new JsonPrimitive(nanosPerRow));
+		timing.add(KEY_RUNS, new JsonPrimitive(timing.has(KEY_RUNS) ? timing.get(KEY_RUNS).getAsInt() + 1 : 1));
+
+		save();
+	}
+
+	private JsonObject getTiming(String tableName, Strategy strategy, boolean create) {
+		JsonElement table = tables.get(tableName);
+
+		if (table == null || !table.isJsonObject()) {
+			if (!create) {
+				return null;
+			}
+
+			table = new JsonObject();
+			tables.add(tableName, table);
+		}
+
+		String key = strategy.name().toLowerCase();
+		JsonElement timing = table.getAsJsonObject().get(key);
+
+		if (timing == null || !timing.isJsonObject()) {
+			if (!create) {
+				return null;
+			}
+
+			timing = new JsonObject();
+			table.getAsJsonObject().add(key, timing);
+		}
+
+		return timing.getAsJsonObject();
+	}
+
+	private void save() {
+		OutputStreamWriter writer = null;
+
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(filePath), Charsets.UTF_8);
+			writer.write(tables.toString());
+		} catch (IOException e) {
+			LOGGER.error(String.format("Error writing file %s", filePath), e);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					LOGGER.error(String.format("Error closing file %s", filePath), e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,421 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Moves records from a {@link Parser} into the database through three stages, so that parsing and database round-trips overlap.
+ *
+ * One reader thread takes batches from the parser, encoder threads turn them into whatever the {@link RecordWriter}s send, and one thread per writer sends
+ * them. The stages are joined by bounded queues, so a slow stage holds back the ones before it rather than letting batches pile up in memory.
+ *
+ * Batches are numbered as they are read and may be written in any order; the calling thread is told about them only once every batch before them has been
+ * written too, so the record number and offset it is given are always safe to resume from.
+ */
+public class IngestPipeline {
+
+	private static final Logger LOGGER = Logger.getLogger(IngestPipeline.class);
+
+	private static final long POLL_MILLIS = 100;
+	private static final long STATS_INTERVAL = 60 * 1000;
+	private static final long SHUTDOWN_WAIT = 60 * 1000;
+
+	/**
+	 * Told, on the thread calling run(), each time the run of written batches from the start grows.
+	 */
+	public interface CompletionListener {
+		void batchesWritten(long latestRecordNum, long seekPos);
+	}
+
+	/**
+	 * Counters for one stage, safe to read from any thread while the pipeline runs.
+	 */
+	public static class Stage {
+		private String name;
+		private int threads;
+		private BlockingQueue<?> input;
+		private int inputCapacity;
+		private AtomicLong batches = new AtomicLong();
+		private AtomicLong records = new AtomicLong();
+		private AtomicLong busyNanos = new AtomicLong();
+		private long startNanos;
+
+		Stage(String name, int threads, BlockingQueue<?> input, int inputCapacity) {
+			this.name = name;
+			this.threads = threads;
+			this.input = input;
+			this.inputCapacity = inputCapacity;
+		}
+
+		void done(int recordCount, long nanos) {
+			batches.incrementAndGet();
+			records.addAndGet(recordCount);
+			busyNanos.addAndGet(nanos);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		/**
+		 * Number of batches waiting for this stage.
+		 */
+		public int getQueueDepth() {
+			return input == null ? 0 : input.size();
+		}
+
+		public int getQueueCapacity() {
+			return inputCapacity;
+		}
+
+		public long getBatches() {
+			return batches.get();
+		}
+
+		public long getRecords() {
+			return records.get();
+		}
+
+		/**
+		 * Records through this stage per second since the pipeline started.
+		 */
+		public double getRecordsPerSecond() {
+			long elapsed = System.nanoTime() - startNanos;
+			return elapsed <= 0 ? 0 : records.get() * 1e9 / elapsed;
+		}
+
+		/**
+		 * Fraction of its threads' time that this stage has spent working rather than waiting on its queues.
+		 */
+		public double getUtilisation() {
+			long elapsed = System.nanoTime() - startNanos;
+			return elapsed <= 0 ? 0 : (double) busyNanos.get() / ((double) elapsed * threads);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d records, %.0f records/s, %.0f%% busy, queue %d/%d", name, records.get(), getRecordsPerSecond(),
+					getUtilisation() * 100, getQueueDepth(), inputCapacity);
+		}
+	}
+
+	private static class Batch {
+		long seq;
+		List<List<String>> records;
+		RecordBatch typedRecords;
+		int recordCount;
+		long recordNum;
+		long seekPos;
+		Object encoded;
+	}
+
+	private Parser parser;
+	private List<RecordWriter> writers;
+	private int encoders;
+	private int batchSize;
+	private BatchSizer batchSizer;
+	private boolean typed;
+	private boolean failOnRejectedRecords;
+	private BlockingQueue<RecordBatch> spareBatches = new LinkedBlockingQueue<RecordBatch>();
+
+	private BlockingQueue<Batch> parsed;
+	private BlockingQueue<Batch> encoded;
+	private BlockingQueue<Batch> written;
+	private Stage readStage;
+	private Stage encodeStage;
+	private Stage writeStage;
+
+	private volatile long batchCount = -1;
+	private volatile Throwable failure;
+
+	/**
+	 * Each writer gets a thread of its own; the first one's encode() is used for every batch. queueDepth is the capacity, in batches, of the queues in front
+	 * of the encoders and of the writers.
+	 */
+	public IngestPipeline(Parser parser, List<RecordWriter> writers, int encoders, int queueDepth) {
+		this(parser, writers, encoders, queueDepth, null);
+	}
+
+	/**
+	 * batchSizer, if not null, sizes the batches instead of the first writer's getBatchSize(), and is told how each batch encodes and writes.
+	 */
+	public IngestPipeline(Parser parser, List<RecordWriter> writers, int encoders, int queueDepth, BatchSizer batchSizer) {
+		this.parser = parser;
+		this.batchSizer = batchSizer;
+		this.writers = writers;
+		this.encoders = Math.max(1, encoders);
+		this.batchSize = writers.get(0).getBatchSize();
+		this.typed = writers.get(0) instanceof TypedRecordWriter;
+
+		this.parsed = new ArrayBlockingQueue<Batch>(queueDepth);
+		this.encoded = new ArrayBlockingQueue<Batch>(queueDepth);
+		this.written = new LinkedBlockingQueue<Batch>();
+
+		this.readStage = new Stage("read", 1, null, 0);
+		this.encodeStage = new Stage("encode", this.encoders, parsed, queueDepth);
+		this.writeStage = new Stage("write", writers.size(), encoded, queueDepth);
+	}
+
+	/**
+	 * If failOnRejectedRecords is True, a batch the database rejects fails the pipeline, rather than being logged by its writer and left out.
+	 */
+	public void setFailOnRejectedRecords(boolean failOnRejectedRecords) {
+		this.failOnRejectedRecords = failOnRejectedRecords;
+	}
+
+	public List<Stage> getStages() {
+		List<Stage> stages = new ArrayList<Stage>();
+		stages.add(readStage);
+		stages.add(encodeStage);
+		stages.add(writeStage);
+		return Collections.unmodifiableList(stages);
+	}
+
+	/**
+	 * Runs the pipeline until the parser runs out of records, or until a stage fails, in which case its exception is rethrown here.
+	 */
+	public void run(CompletionListener listener) throws SQLException, IOException, SubstringNotFoundException, InstantiationException, IllegalAccessException,
+			ClassNotFoundException {
+
+		long start = System.nanoTime();
+		for (Stage stage : getStages()) {
+			stage.startNanos = start;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(1 + encoders + writers.size(), new ThreadFactoryBuilder().setNameFormat("epf-ingest-%d")
+				.setDaemon(true).build());
+
+		executor.execute(new Runnable() {
+			public void run() {
+				read();
+			}
+		});
+
+		for (int j = 0; j < encoders; j++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					encode();
+				}
+			});
+		}
+
+		for (final RecordWriter writer : writers) {
+			executor.execute(new Runnable() {
+				public void run() {
+					write(writer);
+				}
+			});
+		}
+
+		try {
+			TreeMap<Long, Batch> pending = new TreeMap<Long, Batch>();
+			long nextSeq = 0;
+			long lastStats = System.currentTimeMillis();
+
+			while (batchCount < 0 || nextSeq < batchCount) {
+				Batch batch = written.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+				if (failure != null) {
+					rethrow(failure);
+				}
+
+				if (batch != null) {
+					pending.put(Long.valueOf(batch.seq), batch);
+
+					Batch last = null;
+					while (!pending.isEmpty() && pending.firstKey().longValue() == nextSeq) {
+						last = pending.remove(pending.firstKey());
+						nextSeq++;
+					}
+
+					if (last != null) {
+						listener.batchesWritten(last.recordNum, last.seekPos);
+					}
+				}
+
+				if (System.currentTimeMillis() - lastStats >= STATS_INTERVAL) {
+					lastStats = System.currentTimeMillis();
+					logStats();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while ingesting", e);
+		} finally {
+			executor.shutdownNow();
+
+			try {
+				if (!executor.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS)) {
+					LOGGER.warn("Ingest pipeline threads did not stop");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (LOGGER.isDebugEnabled()) {
+			logStats();
+		}
+	}
+
+	private void logStats() {
+		if (LOGGER.isInfoEnabled()) {
+			LOGGER.info(String.format("Pipeline %s; %s; %s", readStage, encodeStage, writeStage));
+		}
+	}
+
+	/**
+	 * Reader stage: the only thread using the parser while the pipeline runs.
+	 */
+	private void read() {
+		try {
+			long seq = 0;
+
+			while (true) {
+				long t = System.nanoTime();
+				int size = (batchSizer == null ? batchSize : batchSizer.getBatchSize());
+				Batch batch = new Batch();
+
+				if (typed) {
+					RecordBatch records = spareBatches.poll();
+					if (records == null) {
+						records = parser.newRecordBatch(size);
+					}
+
+					if (parser.nextRecords(records, size) == 0) {
+						break;
+					}
+
+					batch.typedRecords = records;
+					batch.recordCount = records.size();
+				} else {
+					List<List<String>> records = parser.nextRecords(size);
+					if (records == null || records.size() == 0) {
+						break;
+					}
+
+					batch.records = records;
+					batch.recordCount = records.size();
+				}
+
+				batch.seq = seq++;
+				batch.recordNum = parser.getLatestRecordNum();
+				batch.seekPos = parser.getSeekPos();
+				readStage.done(batch.recordCount, System.nanoTime() - t);
+
+				parsed.put(batch);
+			}
+
+			batchCount = seq;
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (Throwable e) {
+			failure = e;
+		}
+	}
+
+	private void encode() {
+		try {
+			while (true) {
+				Batch batch = parsed.take();
+
+				long t = System.nanoTime();
+				if (typed) {
+					batch.encoded = ((TypedRecordWriter) writers.get(0)).encode(batch.typedRecords);
+				} else {
+					batch.encoded = writers.get(0).encode(batch.records);
+				}
+				batch.records = null;
+				encodeStage.done(batch.recordCount, System.nanoTime() - t);
+
+				if (batchSizer != null) {
+					batchSizer.encoded(batch.recordCount, writers.get(0).getEncodedSize(batch.encoded));
+				}
+
+				encoded.put(batch);
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (Throwable e) {
+			failure = e;
+		}
+	}
+
+	private void write(RecordWriter writer) {
+		try {
+			while (true) {
+				Batch batch = encoded.take();
+
+				long t = System.nanoTime();
+				long rejected = writer.getRejectedRecords();
+				writer.write(batch.encoded, batch.recordCount);
+				batch.encoded = null;
+
+				if (failOnRejectedRecords && writer.getRejectedRecords() != rejected) {
+					throw new SQLException(String.format("A batch of %d records was rejected", batch.recordCount));
+				}
+
+				if (batch.typedRecords != null) {
+					spareBatches.offer(batch.typedRecords);
+					batch.typedRecords = null;
+				}
+				writeStage.done(batch.recordCount, System.nanoTime() - t);
+
+				if (batchSizer != null) {
+					batchSizer.written(batch.recordCount, System.nanoTime() - t);
+				}
+
+				written.put(batch);
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (Throwable e) {
+			failure = e;
+		}
+	}
+
+	private static void rethrow(Throwable e) throws SQLException, IOException, SubstringNotFoundException, InstantiationException, IllegalAccessException,
+			ClassNotFoundException {
+		if (e instanceof SQLException) {
+			throw (SQLException) e;
+		} else if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e instanceof SubstringNotFoundException) {
+			throw (SubstringNotFoundException) e;
+		} else if (e instanceof InstantiationException) {
+			throw (InstantiationException) e;
+		} else if (e instanceof IllegalAccessException) {
+			throw (IllegalAccessException) e;
+		} else if (e instanceof ClassNotFoundException) {
+			throw (ClassNotFoundException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		} else if (e instanceof Error) {
+			throw (Error) e;
+		}
+
+		throw new RuntimeException(e);
+	}
+}
@@ -5,8 +5,10 @@ package com.spacehopperstudios.epf;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -14,7 +16,6 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.spacehopperstudios.database.Connection;
 
@@ -27,6 +28,20 @@ public abstract class Ingester {
 
 	private static final Logger LOGGER = Logger.getLogger(Ingester.class);
 
+	/**
+	 * Incremental files with fewer records than this update the table in place when there's no row count for the table to compare them with
+	 */
+	public static final long DEFAULT_IN_PLACE_LIMIT = 500000;
+
+	private static final int DELETE_BATCH_SIZE = 1000;
+
+	/**
+	 * Notified each time a batch of records has been written, so that progress can be checkpointed for resuming.
+	 */
+	public interface ProgressListener {
+		void recordsIngested(Ingester ingester, String tableName, long lastRecordIngested, long seekPos);
+	}
+
 	// MySQLdb turns MySQL warnings into python warnings, whose behavior is somewhat arcane
 	// (as compared with python exceptions.
 	// By default, turn all warnings into exceptions
@@ -53,13 +68,19 @@ public abstract class Ingester {
 	private Map<String, String> statusDict;
 	private long lastRecordCheck = 0;
 	private Date lastTimeCheck;
+	private ImportOptions options;
+	private ProgressListener progressListener;
 
 	public Ingester(String filePath, String tablePrefix/* =null */, String dbHost/* ='localhost' */, String dbUser/* ='epfimporter' */, String dbPassword/*
 																																						 * ='epf123'
 																																						 */,
 			String dbName/* ='epf' */, String recordDelim/* ='\x02\n' */, String fieldDelim/* ='\x01' */) throws IOException, SubstringNotFoundException {
-		/*
-        */
+		this(filePath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, new ImportOptions());
+	}
+
+	public Ingester(String filePath, String tablePrefix, String dbHost, String dbUser, String dbPassword, String dbName, String recordDelim, String fieldDelim,
+			ImportOptions options) throws IOException, SubstringNotFoundException {
+		this.options = options;
 		this.filePath = filePath;
 		this.fileName = (new File(filePath)).getName();
 		String pref = tablePrefix == null ? "" : String.format("%s_", tablePrefix);
@@ -129,15 +150,48 @@ public abstract class Ingester {
 	public void ingestFull(boolean skipKeyViolators/* =False */) throws IOException, SubstringNotFoundException, SQLException, NullPointerException,
 			InstantiationException, IllegalAccessException, ClassNotFoundException {
 
+		DiffIndex index = openDiffIndex();
+		if (index != null) {
+			if (this.tableExists(this.tableName, null)) {
+				ingestDiff(index, RowDiff.FULL, skipKeyViolators);
+				return;
+			}
+
+			index.close(); // replaced by the one built below
+		}
+
 		if (LOGGER.isInfoEnabled()) {
 			LOGGER.info(String.format("Beginning full ingest of %s (%d records)", this.tableName, getParser().getRecordsExpected()));
 		}
 
 		this.setStartTime(new Date());
+
+		// keep a diff index of the new table, for the next import to be diffed against
+		DiffIndex built = null;
+		RowDiff diff = null;
+		File diffDirectory = getDiffDirectory();
+		if (diffDirectory != null) {
+			built = DiffIndex.create(diffDirectory, this.tableName, getParser().getRecordsExpected(), RowDiff.signature(getParser().getColumnNames(),
+					getParser().getPrimaryKey()));
+			diff = newRowDiff(RowDiff.BUILD, null, built);
+			getParser().setRowDiff(diff);
+		}
+
+		boolean ingested = false;
 		try {
 			createTable(this.tmpTableName);
-			populateTable(this.tmpTableName, 0, false, skipKeyViolators);
+			long rejected = populateTable(this.tmpTableName, 0, -1, false, skipKeyViolators);
+
+			if (built != null && rejected > 0) {
+				// the index has the rejected records as written, so would have the next import skip them
+				LOGGER.warn(String.format("Not keeping a diff index of %s: %d records were rejected", this.tableName, rejected));
+				built.discard();
+				built = null;
+			}
+
+			buildIndexes(this.tmpTableName, skipKeyViolators);
 			renameAndDrop(this.tmpTableName, this.tableName);
+			ingested = true;
 		} catch (SQLException e) {
 			LOGGER.error(String.format("Fatal error encountered while ingesting '%s'", this.filePath), e);
 			LOGGER.error(String.format("Last record ingested before failure: %d", this.lastRecordIngested));
@@ -145,6 +199,18 @@ public abstract class Ingester {
 			this.didAbort = true;
 			this.updateStatusDict();
 			throw e; // re-raise the exception
+		} finally {
+			getParser().setRowDiff(null);
+
+			if (built != null && !ingested) {
+				built.discard();
+			}
+		}
+
+		if (built != null) {
+			commitDiffIndex(diff, built);
+		} else if (diffDirectory != null) {
+			discardDiffIndex(); // it describes the table just replaced
 		}
 
 		// ingest completed
@@ -167,15 +233,33 @@ public abstract class Ingester {
 	public void ingestFullResume(long fromRecord/* =0 */, boolean skipKeyViolators/* =False */) throws IOException, SubstringNotFoundException, SQLException,
 			InstantiationException, IllegalAccessException, ClassNotFoundException {
 
+		ingestFullResume(fromRecord, -1, skipKeyViolators);
+	}
+
+	/**
+	 * Resume an interrupted full ingest, continuing from fromRecord, which starts at byte offset fromPos (as reported to the ProgressListener).
+	 * 
+	 * If fromPos is negative, the parser seeks to fromRecord instead.
+	 * 
+	 * Records that violate the primary key are always skipped, whatever skipKeyViolators says: the interrupted import may have written some records past
+	 * fromRecord already, and sending them again would otherwise fail their batches.
+	 */
+	public void ingestFullResume(long fromRecord, long fromPos, boolean skipKeyViolators) throws IOException, SubstringNotFoundException, SQLException,
+			InstantiationException, IllegalAccessException, ClassNotFoundException {
+
 		if (LOGGER.isInfoEnabled()) {
 			LOGGER.info(String.format("Resuming full ingest of %s (%d records)", this.tableName, getParser().getRecordsExpected()));
 		}
 
+		discardDiffIndex(); // a diff index can't be built from part of the file
 		this.lastRecordIngested = fromRecord - 1;
 		this.setStartTime(new Date());
 
 		try {
-			populateTable(this.tmpTableName, fromRecord, false, skipKeyViolators);
+			// batches written out of order (unordered parsing, several writers) may have put records past fromRecord in the table already, so their keys
+			// are skipped rather than failing their batches
+			populateTable(this.tmpTableName, fromRecord, fromPos, false, true);
+			buildIndexes(this.tmpTableName, true);
 			renameAndDrop(this.tmpTableName, this.tableName);
 		} catch (SQLException e) {
 			// LOGGER.error("Error %d: %s", e.args[0], e.args[1])
@@ -198,10 +282,16 @@ public abstract class Ingester {
 	/**
 	 * Update the table with the data in the file at filePath.
 	 * 
-	 * If the file to ingest has < 500,000 records, we do a simple REPLACE operation on the existing table. If it's larger than that, we use the following
-	 * 3-step process: 1. Create a temporary table, and populate it exactly as though it were a Full ingest 2. Perform a SQL query which selects all rows in the
+	 * If the file is small next to the existing table, we do a simple REPLACE operation on the existing table (see chooseIncrementalStrategy()). Otherwise,
+	 * we use the following 3-step process: 1. Create a temporary table, and populate it exactly as though it were a Full ingest 2. Perform a SQL query which selects all rows in the
 	 * old table whose primary keys *don't* match those in the new table, unions the result with all rows in the new table, and writes the resulting set to
 	 * another temporary table. 3. Swap out the old table for the new one via a rename (same as for Full ingests) This proves to be much faster for large files.
+	 * 
+	 * If the import options ask for upserts and the database supports them, step 2 instead applies the temporary table to the existing one in place, and
+	 * there's no step 3.
+	 * 
+	 * If the table has a diff index, none of this happens: the file is diffed against the index, and only the records that change the table are upserted
+	 * (see ingestDiff()).
 	 */
 	public void ingestIncremental(long fromRecord/* =0 */, boolean skipKeyViolators /* =False */) throws NullPointerException, SQLException, IOException,
 			SubstringNotFoundException, InstantiationException, IllegalAccessException, ClassNotFoundException {
@@ -224,6 +314,14 @@ public abstract class Ingester {
 				// also being sliced.
 			}
 
+			DiffIndex index = (fromRecord > 0 ? null : openDiffIndex());
+			if (index != null) {
+				ingestDiff(index, RowDiff.INCREMENTAL, skipKeyViolators);
+				return;
+			}
+
+			discardDiffIndex(); // the table is about to change without it
+
 			String s = (fromRecord > 0 ? "Resuming" : "Beginning");
 			LOGGER.info(String.format("%s incremental ingest of %s (%d records)", s, this.tableName, getParser().getRecordsExpected()));
 			this.setStartTime(new Date());
@@ -232,18 +330,44 @@ public abstract class Ingester {
 			// If there are a large number of records, it's much faster to do a prune-and-merge technique;
 			// for fewer records, it's faster to update the existing table.
 			try {
-				if (getParser().getRecordsExpected() < 500000) { // update table in place
-					populateTable(this.tableName, fromRecord, true, skipKeyViolators);
+				long tableRows = (fromRecord > 0 ? -1 : estimateRowCount(this.tableName));
+				IncrementalStats.Strategy strategy = chooseIncrementalStrategy(fromRecord, tableRows);
+				long strategyStart = System.currentTimeMillis();
+
+				if (strategy == IncrementalStats.Strategy.IN_PLACE) { // update table in place
+					populateTable(this.tableName, fromRecord, -1, true, skipKeyViolators);
 				} else { // Import as full, then merge the proper records into a new table
 					createTable(this.incTableName);
 					LOGGER.info("Populating temporary table...");
-					populateTable(this.incTableName, 0, false, skipKeyViolators);
-					LOGGER.info("Creating merged table...");
-					createUnionTable();
-					dropTable(this.incTableName);
-					LOGGER.info("Applying primary key constraints...");
-					applyPrimaryKeyConstraints(this.unionTableName);
-					renameAndDrop(this.unionTableName, this.tableName);
+					populateTable(this.incTableName, 0, -1, false, skipKeyViolators);
+					if (this.options.isDeferIndexes()) {
+						applyDeferredPrimaryKey(this.incTableName, skipKeyViolators); // the merge looks rows up by key
+					}
+					boolean upserted = false;
+					if (this.options.isUpsertIncrementals()) {
+						upserted = upsertIncTable();
+
+						if (!upserted) {
+							LOGGER.warn(String.format("Can't upsert into %s; merging into a new table instead", this.tableName));
+						}
+					}
+
+					if (upserted) {
+						dropTable(this.incTableName);
+					} else {
+						LOGGER.info("Creating merged table...");
+						createUnionTable();
+						dropTable(this.incTableName);
+						LOGGER.info("Applying primary key constraints...");
+						applyPrimaryKeyConstraints(this.unionTableName);
+						createSecondaryIndexes(this.unionTableName);
+						renameAndDrop(this.unionTableName, this.tableName);
+					}
+				}
+
+				if (this.options.getIncrementalStats() != null && tableRows >= 0) {
+					long rows = getParser().getRecordsExpected() + (strategy == IncrementalStats.Strategy.MERGE ? tableRows : 0);
+					this.options.getIncrementalStats().record(this.tableName, strategy, rows, System.currentTimeMillis() - strategyStart);
 				}
 
 			} catch (SQLException e) {
@@ -268,6 +392,193 @@ public abstract class Ingester {
 		this.updateStatusDict();
 	}
 
+	/**
+	 * Applies the file to the table by diffing it against index, the table's diff index, rather than rebuilding or merging the table: only new and changed
+	 * records are upserted, in place, and for a full file the rows it no longer has are deleted by key. The rows the file leaves unchanged keep their
+	 * export_date.
+	 * 
+	 * The index is updated as a copy, which replaces it once the table has been updated. Until then, the index is marked as having this file applied, so
+	 * that if the import fails, importing the file again diffs it against the same index; upserting a record twice does no harm.
+	 */
+	private void ingestDiff(DiffIndex index, int mode, boolean skipKeyViolators) throws SQLException, IOException, SubstringNotFoundException,
+			InstantiationException, IllegalAccessException, ClassNotFoundException {
+
+		if (LOGGER.isInfoEnabled()) {
+			LOGGER.info(String.format("Beginning diff of %s against %s (%d records against %d rows)", this.fileName, this.tableName, getParser()
+					.getRecordsExpected(), index.size()));
+		}
+
+		this.setStartTime(new Date());
+
+		DiffIndex target = null;
+		RowDiff diff = null;
+		boolean applied = false;
+
+		try {
+			index.setPending(RowDiff.fileTag(this.filePath));
+			target = (mode == RowDiff.FULL ? DiffIndex.create(getDiffDirectory(), this.tableName, getParser().getRecordsExpected(), index.getSignature())
+					: index.copy());
+			diff = newRowDiff(mode, mode == RowDiff.FULL ? index : target, target);
+			getParser().setRowDiff(diff);
+
+			populateTable(this.tableName, 0, -1, true, skipKeyViolators);
+
+			// if the new index is incomplete, so is the list of rows to delete
+			if (mode == RowDiff.FULL && diff.getFailure() == null) {
+				deleteRows(diff);
+			}
+
+			applied = true;
+		} catch (SQLException e) {
+			LOGGER.error(String.format("Fatal error encountered while ingesting '%s'", this.filePath), e);
+			LOGGER.error(String.format("Last record ingested before failure: %d", this.lastRecordIngested));
+			this.abortTime = new Date();
+			this.didAbort = true;
+			this.updateStatusDict();
+			throw e; // re-raise the exception
+		} finally {
+			getParser().setRowDiff(null);
+			index.close();
+
+			if (target != null && !applied) {
+				target.discard();
+			}
+		}
+
+		commitDiffIndex(diff, target);
+
+		this.endTime = new Date();
+		this.updateStatusDict();
+
+		if (LOGGER.isInfoEnabled()) {
+			LOGGER.info(String.format("Diff of %s: %d new, %d changed, %d unchanged, %d skipped, %d deleted; took %d", this.tableName, diff.getAdded(), diff
+					.getChanged(), diff.getUnchanged(), diff.getSkipped(), diff.getDeleted(), this.endTime.getTime() - this.getStartTime().getTime()));
+		}
+	}
+
+	/**
+	 * Deletes the rows of the table whose keys a full file being diffed no longer has.
+	 */
+	private void deleteRows(RowDiff diff) throws SQLException, IOException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+
+		List<String> conditions = new ArrayList<String>();
+		for (String aCol : getParser().getPrimaryKey()) {
+			conditions.add(String.format("%s = ?", aCol));
+		}
+
+		String exStr = String.format("DELETE FROM %s WHERE %s", this.tableName, Joiner.on(" AND ").join(conditions));
+		Connection conn = this.connect();
+		conn.setTransactionMode(true);
+
+		try {
+			PreparedStatement statement = conn.getCachedStatement(exStr);
+			List<List<String>> keys;
+
+			while (!(keys = diff.nextDeletedKeys(DELETE_BATCH_SIZE)).isEmpty()) {
+				for (List<String> key : keys) {
+					for (int i = 0; i < key.size(); i++) {
+						statement.setString(i + 1, key.get(i));
+					}
+
+					statement.addBatch();
+				}
+
+				statement.executeBatch();
+				conn.commit();
+			}
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	/**
+	 * The directory holding the table's diff index, created if need be, or null if the import options don't keep one, or the table has no primary key to
+	 * key it by.
+	 */
+	private File getDiffDirectory() {
+		String directory = this.options.getDiffIndexDirectory();
+		List<String> pkLst = getParser().getPrimaryKey();
+
+		if (directory == null || pkLst == null || pkLst.isEmpty() || !getParser().getColumnNames().containsAll(pkLst)) {
+			return null;
+		}
+
+		File diffDirectory = new File(directory);
+		if (!diffDirectory.isDirectory() && !diffDirectory.mkdirs()) {
+			LOGGER.warn(String.format("Unable to create diff index directory %s", directory));
+			return null;
+		}
+
+		return diffDirectory;
+	}
+
+	/**
+	 * Opens the table's diff index, or returns null if it has none that still describes the table; one that doesn't is deleted.
+	 */
+	private DiffIndex openDiffIndex() {
+		File diffDirectory = getDiffDirectory();
+		DiffIndex index = (diffDirectory == null ? null : DiffIndex.open(diffDirectory, this.tableName));
+
+		if (index == null) {
+			return null;
+		}
+
+		String reason = null;
+		if (index.getSignature() != RowDiff.signature(getParser().getColumnNames(), getParser().getPrimaryKey())) {
+			reason = "the table's columns have changed";
+		} else if (index.getPending() != 0 && index.getPending() != RowDiff.fileTag(this.filePath)) {
+			reason = "the import of another file into the table didn't finish";
+		}
+
+		if (reason != null) {
+			LOGGER.warn(String.format("Discarding the diff index of %s: %s", this.tableName, reason));
+			index.close();
+			DiffIndex.delete(diffDirectory, this.tableName);
+			return null;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Deletes the table's diff index, if it has one, before the table is changed in a way it can't keep up with.
+	 */
+	private void discardDiffIndex() {
+		File diffDirectory = getDiffDirectory();
+
+		if (diffDirectory != null) {
+			DiffIndex.delete(diffDirectory, this.tableName);
+		}
+	}
+
+	/**
+	 * Commits the diff index made while the table was changed. Failing that, the table is left without one, which is better than one that no longer
+	 * describes it: the next import goes the long way and builds a new one.
+	 */
+	private void commitDiffIndex(RowDiff diff, DiffIndex index) {
+		try {
+			if (diff.getFailure() != null) {
+				throw diff.getFailure();
+			}
+
+			index.commit();
+		} catch (IOException e) {
+			LOGGER.error(String.format("Unable to save the diff index of %s", this.tableName), e);
+			index.discard();
+			discardDiffIndex();
+		}
+	}
+
+	private RowDiff newRowDiff(int mode, DiffIndex base, DiffIndex target) {
+		Parser parser = getParser();
+		List<String> valueColumns = new ArrayList<String>(parser.getColumnNames());
+		valueColumns.remove(Parser.EXPORT_DATE_COLUMN);
+
+		int exportDateField = (valueColumns.size() < parser.getColumnNames().size() ? parser.sourceFields(Collections.singletonList(Parser.EXPORT_DATE_COLUMN))[0]
+				: -1);
+		return new RowDiff(mode, base, target, parser.sourceFields(parser.getPrimaryKey()), parser.sourceFields(valueColumns), exportDateField);
+	}
+
 	public abstract boolean tableExists(String tableName/* =null */, Connection connection/* =null */) throws SQLException, InstantiationException,
 			IllegalAccessException, ClassNotFoundException;
 
@@ -279,77 +590,320 @@ public abstract class Ingester {
 
 	public abstract void dropTable(String tableName) throws NullPointerException, SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException;
 
+	/**
+	 * Removes rows of tableName that repeat the primary key of an earlier row, returning how many were removed (or -1 if the database doesn't say).
+	 */
+	public abstract long removeDuplicateKeys(String tableName) throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException;
+
+	public abstract void createIndex(String tableName, List<String> columns) throws SQLException, InstantiationException, IllegalAccessException,
+			ClassNotFoundException;
+
 	public abstract void createUnionTable() throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException;
 
+	/**
+	 * Returns the database's estimate of the number of rows in tableName, from its statistics rather than by counting them, or -1 if it has none.
+	 */
+	public abstract long estimateRowCount(String tableName) throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException;
+
+	/**
+	 * Returns the assumed cost of strategy, in nanoseconds per row, on tables it has never been timed on (see IncrementalStats).
+	 */
+	protected abstract double getDefaultNanosPerRow(IncrementalStats.Strategy strategy);
+
+	/**
+	 * Decides whether an incremental import is applied to the existing table in place or merged with it into a new one, and logs why.
+	 * 
+	 * Updating in place costs in proportion to the incremental records, merging in proportion to the whole table, so the choice compares the two using the
+	 * costs per row timed on previous runs on this table, or the backend's defaults. Without a row count for the table, files of fewer than
+	 * DEFAULT_IN_PLACE_LIMIT records are updated in place. Resumed imports always carry on in place, since that's the only way they can have been started.
+	 */
+	protected IncrementalStats.Strategy chooseIncrementalStrategy(long fromRecord, long tableRows) {
+		long records = getParser().getRecordsExpected();
+
+		if (fromRecord > 0) {
+			LOGGER.info(String.format("Updating %s in place: resuming from record %d", this.tableName, fromRecord));
+			return IncrementalStats.Strategy.IN_PLACE;
+		}
+
+		if (tableRows < 0) {
+			IncrementalStats.Strategy strategy = (records < DEFAULT_IN_PLACE_LIMIT ? IncrementalStats.Strategy.IN_PLACE : IncrementalStats.Strategy.MERGE);
+			LOGGER.info(String.format("%s: no row count for the table, and %d records %s the limit of %d", describe(strategy), records,
+					strategy == IncrementalStats.Strategy.IN_PLACE ? "are under" : "reach", DEFAULT_IN_PLACE_LIMIT));
+			return strategy;
+		}
+
+		IncrementalStats stats = this.options.getIncrementalStats();
+
+		double inPlaceNanos = (stats == null ? -1 : stats.getNanosPerRow(this.tableName, IncrementalStats.Strategy.IN_PLACE));
+		String inPlaceSource = (inPlaceNanos < 0 ? "default" : String.format("timed over %d runs", stats.getRuns(this.tableName,
+				IncrementalStats.Strategy.IN_PLACE)));
+		if (inPlaceNanos < 0) {
+			inPlaceNanos = getDefaultNanosPerRow(IncrementalStats.Strategy.IN_PLACE);
+		}
+
+		double mergeNanos = (stats == null ? -1 : stats.getNanosPerRow(this.tableName, IncrementalStats.Strategy.MERGE));
+		String mergeSource = (mergeNanos < 0 ? "default" : String.format("timed over %d runs", stats.getRuns(this.tableName, IncrementalStats.Strategy.MERGE)));
+		if (mergeNanos < 0) {
+			mergeNanos = getDefaultNanosPerRow(IncrementalStats.Strategy.MERGE);
+		}
+
+		double inPlaceSeconds = records * inPlaceNanos / 1e9;
+		double mergeSeconds = (tableRows + records) * mergeNanos / 1e9;
+		IncrementalStats.Strategy strategy = (inPlaceSeconds <= mergeSeconds ? IncrementalStats.Strategy.IN_PLACE : IncrementalStats.Strategy.MERGE);
+
+		LOGGER.info(String.format("%s: %d records against ~%d rows; in place ~%.0fs (%.0f ns/record, %s), merging ~%.0fs (%.0f ns/row, %s)",
+				describe(strategy), records, tableRows, inPlaceSeconds, inPlaceNanos, inPlaceSource, mergeSeconds, mergeNanos, mergeSource));
+
+		return strategy;
+	}
+
+	private String describe(IncrementalStats.Strategy strategy) {
+		return String.format(strategy == IncrementalStats.Strategy.IN_PLACE ? "Updating %s in place" : "Merging %s into a new table", this.tableName);
+	}
+
+	/**
+	 * After incremental ingest data has been written to this.getIncTableName(), apply it to the target table in place, keeping the newer of each pair of rows
+	 * sharing a primary key, and return True; or, if this database or table can't be upserted into, return False without changing anything.
+	 */
+	protected abstract boolean upsertIncTable() throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException;
+
 	/**
 	 * Establish a connection to the database, returning the connection object.
+	 * 
+	 * Subclasses add the driver properties that let batched statements be rewritten into multi-row ones.
 	 */
 	public Connection connect() throws InstantiationException, IllegalAccessException, ClassNotFoundException {
 
-		return new Connection(dbHost, dbName, dbUser, dbPassword);
+		return new Connection(dbHost, dbName, dbUser, dbPassword, getDialect());
+	}
+
+	/**
+	 * The kind of database server connect() connects to.
+	 */
+	protected Connection.Dialect getDialect() {
+		return Connection.Dialect.POSTGRES;
 	}
 
 	public abstract List<List<String>> escapeRecords(List<List<String>> recordList, Connection connection/* =null */) throws InstantiationException,
 			IllegalAccessException, ClassNotFoundException;
 
 	/**
-	 * Populate tableName with data fetched by the parser, first advancing to resumePos.
+	 * Populate tableName with data fetched by the parser, first advancing to resumeNum (found at byte offset resumePos, if that isn't negative).
+	 * 
+	 * Records go through an {@link IngestPipeline}, so parsing carries on while earlier batches are being written, on as many connections as the import
+	 * options ask for (only one when updating a table in place).
 	 * 
 	 * For Full imports, if skipKeyViolators is True, any insertions which would violate the primary key constraint will be skipped and won't log errors.
+	 * 
+	 * Returns the number of records the database rejected. While the parser is diffing records against a table, which notes each one in the index before
+	 * it is written, a rejected batch fails the import instead.
 	 */
-	private void populateTable(String tableName, long resumeNum/* =0 */, boolean isIncremental/* =False */, boolean skipKeyViolators/* =False */)
-			throws SQLException, IOException, SubstringNotFoundException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+	private long populateTable(String tableName, long resumeNum/* =0 */, long resumePos/* =-1 */, boolean isIncremental/* =False */,
+			boolean skipKeyViolators/* =False */) throws SQLException, IOException, SubstringNotFoundException, InstantiationException, IllegalAccessException,
+			ClassNotFoundException {
+
+		if (resumePos >= 0) {
+			getParser().seekToPosition(resumeNum, resumePos);
+		} else {
+			getParser().seekToRecord(resumeNum); // advance to resumeNum
+		}
+
+		// updating a table in place has to apply the records in file order, in case a key appears more than once
+		int writerCount = (isIncremental ? 1 : Math.max(1, this.options.getWriteThreads()));
+		int encoderCount = (isIncremental ? 1 : this.options.getEncodeThreads());
+
+		List<RecordWriter> writers = new ArrayList<RecordWriter>();
+		final String table = tableName;
+
+		try {
+			for (int j = 0; j < writerCount; j++) {
+				writers.add(createRecordWriter(tableName, isIncremental, skipKeyViolators));
+			}
+
+			if (writerCount > 1 && LOGGER.isDebugEnabled()) {
+				LOGGER.debug(String.format("Writing %s on %d connections", tableName, writerCount));
+			}
+
+			BatchSizer batchSizer = null;
+			if (this.options.isAdaptiveBatches()) {
+				batchSizer = new BatchSizer(writers.get(0).getBatchSize(), getMaxBatchBytes(writers.get(0)));
+			}
+
+			IngestPipeline pipeline = new IngestPipeline(getParser(), writers, encoderCount, this.options.getPipelineDepth(), batchSizer);
+			RowDiff diff = getParser().getRowDiff();
+			pipeline.setFailOnRejectedRecords(diff != null && diff.getMode() != RowDiff.BUILD);
+			pipeline.run(new IngestPipeline.CompletionListener() {
+				public void batchesWritten(long latestRecordNum, long seekPos) {
+					Ingester.this.lastRecordIngested = latestRecordNum;
+					if (Ingester.this.progressListener != null) {
+						Ingester.this.progressListener.recordsIngested(Ingester.this, table, latestRecordNum, seekPos);
+					}
+
+					long recCheck = checkProgress(5000, 120 * 1000);
+
+					if (recCheck != 0) {
+						if (LOGGER.isInfoEnabled()) {
+							LOGGER.info(String.format("...at record %d...", recCheck));
+						}
+					}
+				}
+			});
+
+			long rejected = 0;
+			for (RecordWriter writer : writers) {
+				rejected += writer.getRejectedRecords();
+			}
+
+			return rejected;
+		} finally {
+			for (RecordWriter writer : writers) {
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * Creates the writer populateTable uses to send records to tableName, according to the write mode in the import options.
+	 */
+	protected RecordWriter createRecordWriter(String tableName, boolean isIncremental, boolean skipKeyViolators) throws InstantiationException,
+			IllegalAccessException, ClassNotFoundException {
 
 		// REPLACE is a MySQL extension which inserts if the key is new, or deletes and inserts if the key is a duplicate
 		String commandString = (isIncremental ? "REPLACE" : "INSERT");
 		String ignoreString = (skipKeyViolators && !isIncremental ? "IGNORE" : "");
-		String exStrTemplate = "%s %s INTO %s %s VALUES %s";
 		String colNamesStr = String.format("(%s)", Joiner.on(", ").join(getParser().getColumnNames()));
 
-		getParser().seekToRecord(resumeNum); // advance to resumeNum
-		Connection conn = this.connect();
+		if (this.options.getWriteMode() != ImportOptions.WriteMode.STATEMENT) {
+			String placeholders = Joiner.on(", ").join(Collections.nCopies(getParser().getColumnNames().size(), "?"));
+			String exStr = String.format("%s %s INTO %s %s VALUES (%s)", commandString, ignoreString, tableName, colNamesStr, placeholders);
+			return new BatchRecordWriter(this.connect(), exStr, getParser());
+		}
+
+		return new StatementRecordWriter(this, this.connect(), String.format("%s %s INTO %s %s VALUES ", commandString, ignoreString, tableName, colNamesStr));
+	}
+
+	/**
+	 * Returns the most bytes a batch sent by writer may encode to, when batches are sized adaptively.
+	 */
+	protected long getMaxBatchBytes(RecordWriter writer) throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+		return BatchSizer.DEFAULT_MAX_BATCH_BYTES;
+	}
+
+	/**
+	 * Builds the indexes of a freshly populated tableName: its primary key, if the import options deferred it, then the configured secondary indexes. Building
+	 * each index once over the loaded rows is much cheaper than maintaining it through every insert.
+	 */
+	private void buildIndexes(String tableName, boolean skipKeyViolators) throws SQLException, InstantiationException, IllegalAccessException,
+			ClassNotFoundException {
+
+		if (this.options.isDeferIndexes()) {
+			applyDeferredPrimaryKey(tableName, skipKeyViolators);
+		}
 
-		while (true) {
-			// By default, we concatenate 200 inserts into a single INSERT statement.
-			// a large batch size per insert improves performance, until you start hitting max_packet_size issues.
-			// If you increase MySQL server's max_packet_size, you may get increased performance by increasing maxNum
-			List<List<String>> records = getParser().nextRecords(200);
-			if (records == null || records.size() == 0) {
-				break;
+		createSecondaryIndexes(tableName);
+	}
+
+	/**
+	 * Adds the primary key to tableName after it has been populated, unless it is already there (e.g. a resumed import that started out not deferring it).
+	 * 
+	 * If duplicate keys stop the key from being built, a sample of them is logged; if skipKeyViolators is True the duplicates are then removed, keeping one row
+	 * per key, otherwise the error is rethrown.
+	 */
+	protected void applyDeferredPrimaryKey(String tableName, boolean skipKeyViolators) throws SQLException, InstantiationException, IllegalAccessException,
+			ClassNotFoundException {
+
+		List<String> pkLst = getParser().getPrimaryKey();
+
+		if (pkLst == null || pkLst.size() == 0 || hasPrimaryKey(tableName)) {
+			return;
+		}
+
+		if (LOGGER.isInfoEnabled()) {
+			LOGGER.info(String.format("Building primary key of %s...", tableName));
+		}
+
+		try {
+			applyPrimaryKeyConstraints(tableName);
+		} catch (SQLException e) {
+			List<String> duplicates = findDuplicateKeys(tableName, 10);
+
+			if (duplicates.size() == 0) {
+				throw e;
 			}
 
-			List<List<String>> escapedRecords = escapeRecords(records, null); // This will sanitize the records
+			LOGGER.error(String.format("%s has duplicate primary keys (%s), e.g. %s", tableName, Joiner.on(", ").join(pkLst), Joiner.on("; ").join(duplicates)));
 
-			List<String> stringList = new ArrayList<String>();
-			for (List<String> aRecord : escapedRecords) {
-				stringList.add(String.format("(%s)", Joiner.on(", ").join(aRecord)));
+			if (!skipKeyViolators) {
+				throw e;
 			}
 
-			String colVals = new String(Joiner.on(", ").join(stringList).getBytes(), Charsets.UTF_8);
-			String exStr = String.format(exStrTemplate, commandString, ignoreString, tableName, colNamesStr, colVals);
-			// unquote NULLs
-			exStr = exStr.replace("'NULL'", "NULL");
-			exStr = exStr.replace("'null'", "NULL");
+			long removed = removeDuplicateKeys(tableName);
+			LOGGER.warn(String.format("Removed %s rows with duplicate keys from %s", removed < 0 ? "the" : Long.toString(removed), tableName));
 
-			try {
-				conn.executeQuery(exStr);
-			} catch (SQLException e) {
-				LOGGER.error(String.format("Error occured executing: %s", exStr), e);
-				// } catch (SQLIntegrityConstraintViolationException e) {
-				// This is likely a primary key constraint violation; should only be hit if skipKeyViolators is False
+			if (!hasPrimaryKey(tableName)) {
+				applyPrimaryKeyConstraints(tableName);
+			}
+		}
+	}
+
+	/**
+	 * Creates the secondary indexes the import options configure for this file.
+	 */
+	protected void createSecondaryIndexes(String tableName) throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+		for (List<String> columns : this.options.getSecondaryIndexes(this.fileName)) {
+			if (LOGGER.isInfoEnabled()) {
+				LOGGER.info(String.format("Building index on %s (%s)...", tableName, Joiner.on(", ").join(columns)));
 			}
 
-			this.lastRecordIngested = getParser().getLatestRecordNum();
-			long recCheck = checkProgress(5000, 120 * 1000);
+			createIndex(tableName, columns);
+		}
+	}
+
+	/**
+	 * Convenience method which returns True if tableName has a primary key.
+	 */
+	public boolean hasPrimaryKey(String tableName) throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
 
-			if (recCheck != 0) {
-				if (LOGGER.isInfoEnabled()) {
-					LOGGER.info(String.format("...at record %d...", recCheck));
+		Connection conn = this.connect();
+		boolean hasKey;
+		try {
+			conn.execute("SELECT COUNT(*) AS count FROM information_schema.table_constraints WHERE table_name = ? AND constraint_type = 'PRIMARY KEY'", tableName);
+			conn.fetchNextRow();
+			hasKey = conn.getCurrentRowInteger("count") > 0;
+		} finally {
+			conn.disconnect();
+		}
+
+		return hasKey;
+	}
+
+	/**
+	 * Returns up to limit primary keys that appear in more than one row of tableName, each with the number of rows it appears in.
+	 */
+	public List<String> findDuplicateKeys(String tableName, int limit) throws SQLException, InstantiationException, IllegalAccessException,
+			ClassNotFoundException {
+
+		List<String> pkLst = getParser().getPrimaryKey();
+		String pkStr = Joiner.on(", ").join(pkLst);
+
+		List<String> duplicates = new ArrayList<String>();
+
+		Connection conn = this.connect();
+		try {
+			conn.executeQuery(String.format("SELECT %s, COUNT(*) AS duplicates FROM %s GROUP BY %s HAVING COUNT(*) > 1 LIMIT %d", pkStr, tableName, pkStr, limit));
+
+			while (conn.nextRow()) {
+				List<String> values = new ArrayList<String>();
+				for (String aCol : pkLst) {
+					values.add(String.valueOf(conn.getCurrentRowValue(aCol)));
 				}
+				duplicates.add(String.format("(%s) x%s", Joiner.on(", ").join(values), conn.getCurrentRowValue("duplicates")));
 			}
+		} finally {
+			conn.disconnect();
 		}
 
-		conn.disconnect();
+		return duplicates;
 	}
 
 	/**
@@ -440,6 +994,14 @@ public abstract class Ingester {
 		return lastTimeCheck;
 	}
 
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	public ImportOptions getOptions() {
+		return options;
+	}
+
 	public Date getStartTime() {
 		return startTime;
 	}
@@ -0,0 +1,60 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * {@link RecordScanner} reading records straight out of a memory mapping of the file.
+ *
+ * A single MappedByteBuffer can't address more than 2 GB, so the file is mapped one window at a time; a window is remapped from the start of whichever
+ * record runs off its end.
+ */
+public class MappedRecordScanner extends RecordScanner {
+
+	public static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long length;
+	private int windowSize;
+
+	public MappedRecordScanner(String filePath, String recordDelim, String fieldDelim) throws IOException {
+		this(filePath, recordDelim, fieldDelim, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedRecordScanner(String filePath, String recordDelim, String fieldDelim, int windowSize) throws IOException {
+		super(recordDelim, fieldDelim);
+
+		this.file = new RandomAccessFile(filePath, "r");
+		this.channel = file.getChannel();
+		this.length = channel.size();
+		this.windowSize = windowSize;
+		fill(0, 0);
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	protected void fill(long offset, int minBytes) throws IOException {
+		long size = Math.min(length - offset, Math.max(windowSize, minBytes));
+
+		window = channel.map(MapMode.READ_ONLY, offset, Math.max(0, size));
+		windowOffset = offset;
+		windowLimit = window.limit();
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+		file.close();
+	}
+}
@@ -1,6 +1,7 @@
 package com.spacehopperstudios.epf;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -20,8 +21,22 @@ public class MySQLIngester extends Ingester {
 	private static final Logger LOGGER = Logger.getLogger(MySQLIngester.class);
 
 	public MySQLIngester(String filePath, String tablePrefix, String dbHost, String dbUser, String dbPassword, String dbName, String recordDelim, String fieldDelim) throws IOException, SubstringNotFoundException {
-		super(filePath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim);
-		parser = new Parser(filePath, Parser.DEFAULT_TYPE_MAP, recordDelim, fieldDelim);
+		this(filePath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, new ImportOptions());
+	}
+
+	public MySQLIngester(String filePath, String tablePrefix, String dbHost, String dbUser, String dbPassword, String dbName, String recordDelim, String fieldDelim,
+			ImportOptions options) throws IOException, SubstringNotFoundException {
+		super(filePath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, options);
+		parser = new Parser(filePath, Parser.DEFAULT_TYPE_MAP, recordDelim, fieldDelim, options);
+	}
+
+	/**
+	 * Ingests length bytes read from stream, such as a member of an archive, as the EPF file filePath.
+	 */
+	public MySQLIngester(String filePath, InputStream stream, long length, String tablePrefix, String dbHost, String dbUser, String dbPassword, String dbName,
+			String recordDelim, String fieldDelim, ImportOptions options) throws IOException, SubstringNotFoundException {
+		super(filePath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, options);
+		parser = new Parser(filePath, stream, length, Parser.DEFAULT_TYPE_MAP, recordDelim, fieldDelim, options);
 	}
 
 	@Override
@@ -29,6 +44,38 @@ public class MySQLIngester extends Ingester {
 		return parser;
 	}
 
+	@Override
+	protected Connection.Dialect getDialect() {
+		return Connection.Dialect.MYSQL;
+	}
+
+	/**
+	 * Establish a connection to the database, asking Connector/J to rewrite batched inserts into multi-row ones and to allow LOAD DATA LOCAL.
+	 */
+	@Override
+	public Connection connect() throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+
+		Connection conn = super.connect();
+		conn.setProperty("rewriteBatchedStatements", "true");
+		conn.setProperty("allowLoadLocalInfile", "true");
+		return conn;
+	}
+
+	/**
+	 * Uses LOAD DATA LOCAL INFILE in the bulk write mode; unlike Postgres's COPY, it can also replace or ignore existing rows.
+	 */
+	@Override
+	protected RecordWriter createRecordWriter(String tableName, boolean isIncremental, boolean skipKeyViolators) throws InstantiationException,
+			IllegalAccessException, ClassNotFoundException {
+
+		if (this.getOptions().getWriteMode() == ImportOptions.WriteMode.BULK) {
+			String duplicates = isIncremental ? "REPLACE" : (skipKeyViolators ? "IGNORE" : "");
+			return new MySQLLoadDataRecordWriter(this.connect(), tableName, duplicates, this.getParser());
+		}
+
+		return super.createRecordWriter(tableName, isIncremental, skipKeyViolators);
+	}
+
 	/**
 	 * Convenience method which returns True if tableName exists in the db, False if not.
 	 *
@@ -39,7 +86,7 @@ public class MySQLIngester extends Ingester {
 	public boolean tableExists(String tableName/* =null */, Connection connection/* =null */) throws SQLException, InstantiationException,
 			IllegalAccessException, ClassNotFoundException {
 
-		String exStr = "SELECT COUNT(*) AS count FROM information_schema.tables WHERE table_schema = '%s' AND table_name = '%s'";
+		String exStr = "SELECT COUNT(*) AS count FROM information_schema.tables WHERE table_schema = ? AND table_name = ?";
 
 		if (tableName == null) {
 			tableName = this.getTableName();
@@ -52,12 +99,15 @@ public class MySQLIngester extends Ingester {
 			conn = connection;
 		}
 
-		conn.executeQuery(String.format(exStr, this.getDbName(), tableName));
-		conn.fetchNextRow(); // this will always be a 1-tuple; the items's value will be 0 or 1
-		boolean doesExist = (conn.getCurrentRowInteger("count") == 1);
-
-		if (connection == null) {
-			conn.disconnect();
+		boolean doesExist;
+		try {
+			conn.execute(exStr, this.getDbName(), tableName);
+			conn.fetchNextRow(); // this will always be a 1-tuple; the items's value will be 0 or 1
+			doesExist = (conn.getCurrentRowInteger("count") == 1);
+		} finally {
+			if (connection == null) {
+				conn.disconnect();
+			}
 		}
 
 		return doesExist;
@@ -106,14 +156,17 @@ public class MySQLIngester extends Ingester {
 			conn = connection;
 		}
 
-		String exStr = String.format("SELECT COUNT(*) AS count FROM information_schema.COLUMNS where TABLE_NAME='%s';", tableName);
-		conn.executeQuery(exStr); // cur.execute() returns the number of rows,
-		// which for SHOW COLUMNS is the number of columns in the table
-
-		int colCount = conn.getCurrentRowInteger("count");
+		String exStr = "SELECT COUNT(*) AS count FROM information_schema.COLUMNS where TABLE_NAME=?";
+		int colCount;
+		try {
+			conn.execute(exStr, tableName); // cur.execute() returns the number of rows,
+			// which for SHOW COLUMNS is the number of columns in the table
 
-		if (connection == null) {
-			conn.disconnect();
+			colCount = conn.getCurrentRowInteger("count");
+		} finally {
+			if (connection == null) {
+				conn.disconnect();
+			}
 		}
 
 		return colCount;
@@ -122,14 +175,11 @@ public class MySQLIngester extends Ingester {
 	/**
 	 * Connect to the db and create a table named this.getTableName()_TMP, dropping previous one if it exists.
 	 *
-	 * Also adds primary key constraint to the new table.
+	 * Also adds primary key constraint to the new table, unless the import options defer it until the table has been populated.
 	 */
 	public void createTable(String tableName) throws NullPointerException, SQLException, InstantiationException, IllegalAccessException,
 			ClassNotFoundException {
 
-		Connection conn = this.connect();
-
-		conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", tableName));
 		// create the column name part of the table creation string
 		String colDef;
 		List<String> lst = new ArrayList<String>();
@@ -141,10 +191,19 @@ public class MySQLIngester extends Ingester {
 		String paramStr = Joiner.on(", ").join(lst);
 		// paramString now looks like "export_date BIGINT, storefront_id INT, country_code VARCHAR(100)" etc.
 		String exStr = String.format("CREATE TABLE %s (%s)", tableName, paramStr);
-		conn.executeQuery(exStr); // create the table in the database
+
+		Connection conn = this.connect();
+		try {
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", tableName));
+			conn.executeQuery(exStr); // create the table in the database
+		} finally {
+			conn.disconnect();
+		}
+
 		// set the primary key
-		conn.disconnect();
-		applyPrimaryKeyConstraints(tableName);
+		if (!this.getOptions().isDeferIndexes()) {
+			applyPrimaryKeyConstraints(tableName);
+		}
 	}
 
 	/**
@@ -156,11 +215,61 @@ public class MySQLIngester extends Ingester {
 		List<String> pkLst = this.getParser().getPrimaryKey();
 
 		if (pkLst != null) {
-			Connection conn = this.connect();
 			String pkStr = Joiner.on(", ").join(pkLst);
-
 			String exStr = String.format("ALTER TABLE %s ADD CONSTRAINT PRIMARY KEY (%s)", tableName, pkStr);
-			conn.executeQuery(exStr);
+
+			Connection conn = this.connect();
+			try {
+				conn.executeQuery(exStr);
+			} finally {
+				conn.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * MySQL rows have no id to tell duplicates apart by (and ALTER IGNORE, which dropped them while building a key, is gone since 5.7.4), so this copies
+	 * tableName into a table of the same shape that already has the primary key, with INSERT IGNORE keeping the first row read for each key, then swaps the
+	 * copy in. The key is then already in place.
+	 */
+	public long removeDuplicateKeys(String tableName) throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+
+		String pkStr = Joiner.on(", ").join(this.getParser().getPrimaryKey());
+		String dedupTable = tableName + "_dedup";
+		String oldTable = tableName + "_dup";
+		long removed;
+
+		Connection conn = this.connect();
+		try {
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s, %s", dedupTable, oldTable));
+			conn.executeQuery(String.format("CREATE TABLE %s LIKE %s", dedupTable, tableName));
+			conn.executeQuery(String.format("ALTER TABLE %s ADD PRIMARY KEY (%s)", dedupTable, pkStr));
+
+			conn.executeQuery(String.format("SELECT COUNT(*) AS count FROM %s", tableName));
+			long rows = (conn.nextRow() ? ((Number) conn.getCurrentRowValue("count")).longValue() : -1);
+			conn.executeQuery(String.format("INSERT IGNORE INTO %s SELECT * FROM %s", dedupTable, tableName));
+			removed = (rows < 0 ? -1 : rows - conn.getAffectedRowCount());
+
+			// one statement, so tableName is never missing
+			conn.executeQuery(String.format("RENAME TABLE %s TO %s, %s TO %s", tableName, oldTable, dedupTable, tableName));
+			conn.executeQuery(String.format("DROP TABLE %s", oldTable));
+		} finally {
+			conn.disconnect();
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Creates an index on columns of tableName, named after the columns.
+	 */
+	public void createIndex(String tableName, List<String> columns) throws SQLException, InstantiationException, IllegalAccessException,
+			ClassNotFoundException {
+
+		Connection conn = this.connect();
+		try {
+			conn.executeQuery(String.format("CREATE INDEX %s_idx ON %s (%s)", Joiner.on("_").join(columns), tableName, Joiner.on(", ").join(columns)));
+		} finally {
 			conn.disconnect();
 		}
 	}
@@ -171,8 +280,11 @@ public class MySQLIngester extends Ingester {
 	public void dropTable(String tableName) throws NullPointerException, SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
 
 		Connection conn = this.connect();
-		conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", tableName));
-		conn.disconnect();
+		try {
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", tableName));
+		} finally {
+			conn.disconnect();
+		}
 	}
 
 	/**
@@ -184,24 +296,87 @@ public class MySQLIngester extends Ingester {
 
 		Connection conn = this.connect();
 
-		// first, rename the existing "real" table, so we can restore it if something goes wrong
-		String targetOld = targetTable + "_old";
-		conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", targetOld));
-		if (this.tableExists(targetTable, conn)) {
-			conn.executeQuery(String.format("ALTER TABLE %s RENAME %s", targetTable, targetOld));
-		}
-		// now rename the new table to replace the old table
 		try {
-			conn.executeQuery(String.format("ALTER TABLE %s RENAME %s", sourceTable, targetTable));
-		} catch (SQLException e) {
-			LOGGER.error("Could not rename tmp table; reverting to original table (if it exists).", e);
-			if (this.tableExists(targetOld, conn)) {
-				conn.executeQuery(String.format("ALTER TABLE %s RENAME %s", targetOld, targetTable));
+			// first, rename the existing "real" table, so we can restore it if something goes wrong
+			String targetOld = targetTable + "_old";
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", targetOld));
+			if (this.tableExists(targetTable, conn)) {
+				conn.executeQuery(String.format("ALTER TABLE %s RENAME %s", targetTable, targetOld));
+			}
+			// now rename the new table to replace the old table
+			try {
+				conn.executeQuery(String.format("ALTER TABLE %s RENAME %s", sourceTable, targetTable));
+			} catch (SQLException e) {
+				LOGGER.error("Could not rename tmp table; reverting to original table (if it exists).", e);
+				if (this.tableExists(targetOld, conn)) {
+					conn.executeQuery(String.format("ALTER TABLE %s RENAME %s", targetOld, targetTable));
+				}
 			}
+			// Drop sourceTable so it's not hanging around
+			// drop the old table
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", targetOld));
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	/**
+	 * Statements and batches have to fit in a packet of max_allowed_packet bytes, with room to spare for the SQL around the values; LOAD DATA streams its
+	 * rows, so isn't limited by it.
+	 */
+	@Override
+	protected long getMaxBatchBytes(RecordWriter writer) throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+
+		if (writer instanceof MySQLLoadDataRecordWriter) {
+			return super.getMaxBatchBytes(writer);
+		}
+
+		Connection conn = this.connect();
+		long maxPacket;
+		try {
+			conn.executeQuery("SELECT @@max_allowed_packet AS size");
+			maxPacket = (conn.nextRow() ? ((Number) conn.getCurrentRowValue("size")).longValue() : -1);
+		} finally {
+			conn.disconnect();
+		}
+
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug(String.format("max_allowed_packet is %d bytes", maxPacket));
 		}
-		// Drop sourceTable so it's not hanging around
-		// drop the old table
-		conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", targetOld));
+
+		return (maxPacket <= 0 ? super.getMaxBatchBytes(writer) : Math.min(super.getMaxBatchBytes(writer), maxPacket * 3 / 4));
+	}
+
+	/**
+	 * Uses InnoDB's estimate in information_schema, which is sampled rather than counted.
+	 */
+	public long estimateRowCount(String tableName) throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+
+		Connection conn = this.connect();
+		Object count;
+		try {
+			conn.execute("SELECT table_rows AS count FROM information_schema.tables WHERE table_schema = ? AND table_name = ?", this.getDbName(), tableName);
+			count = (conn.nextRow() ? conn.getCurrentRowValue("count") : null);
+		} finally {
+			conn.disconnect();
+		}
+
+		return (count == null ? -1 : ((Number) count).longValue());
+	}
+
+	/**
+	 * Upserting incrementals is only implemented for Postgres; on MySQL they are always merged into a new table.
+	 */
+	@Override
+	protected boolean upsertIncTable() {
+		return false;
+	}
+
+	/**
+	 * REPLACE deletes and reinserts each existing row, which is slow next to the bulk copy a merge makes.
+	 */
+	protected double getDefaultNanosPerRow(IncrementalStats.Strategy strategy) {
+		return (strategy == IncrementalStats.Strategy.IN_PLACE ? 100000 : 8000);
 	}
 
 	/**
@@ -209,11 +384,15 @@ public class MySQLIngester extends Ingester {
 	 */
 	public void createUnionTable() throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
 
-		Connection conn = this.connect();
-		conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", this.getUnionTableName()));
 		String exStr = String.format("CREATE TABLE %s %s", this.getUnionTableName(), incrementalUnionString());
-		conn.executeQuery(exStr);
-		conn.disconnect();
+
+		Connection conn = this.connect();
+		try {
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", this.getUnionTableName()));
+			conn.executeQuery(exStr);
+		} finally {
+			conn.disconnect();
+		}
 	}
 
 	/**
@@ -234,11 +413,16 @@ public class MySQLIngester extends Ingester {
 
 	/**
 	 * Creates and returns the appropriate SELECT statement used when pruning the target table during an incremental ingest
+	 *
+	 * This is an anti-join on the primary key, which MySQL stops probing for each row as soon as it finds a match; the COUNT(*) subquery it replaces was
+	 * evaluated in full for every row of the target table.
 	 */
 	public String incrementalSelectString() {
 
-		String whereClause = incrementalWhereClause();
-		String selectString = String.format("SELECT * FROM %s WHERE 0 = (SELECT COUNT(*) FROM %s %s)", this.getTableName(), this.getIncTableName(), whereClause);
+		String joinCondition = incrementalWhereClause().substring("WHERE ".length());
+		String firstKey = this.getParser().getPrimaryKey().get(0);
+		String selectString = String.format("SELECT %s.* FROM %s LEFT JOIN %s ON %s WHERE %s.%s IS NULL", this.getTableName(), this.getTableName(),
+				this.getIncTableName(), joinCondition, this.getIncTableName(), firstKey);
 		return selectString;
 	}
 
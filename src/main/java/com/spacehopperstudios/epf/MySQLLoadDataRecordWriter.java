@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.ByteArrayInputStream;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Joiner;
+import com.spacehopperstudios.database.Connection;
+
+/**
+ * {@link RecordWriter} loading each batch into MySQL with LOAD DATA LOCAL INFILE.
+ *
+ * Rather than a file, Connector/J is handed the batch encoded in memory by a {@link DelimitedRecordEncoder}, through
+ * com.mysql.jdbc.Statement.setLocalInfileInputStream(), so nothing is written to disk and the server never parses any values out of SQL text. The file
+ * name in the statement is only a placeholder.
+ */
+public class MySQLLoadDataRecordWriter implements RecordWriter {
+
+	private static final Logger LOGGER = Logger.getLogger(MySQLLoadDataRecordWriter.class);
+
+	public static final int BATCH_SIZE = 10000;
+
+	private Connection connection;
+	private String sql;
+	private DelimitedRecordEncoder encoder;
+	private com.mysql.jdbc.Statement statement;
+	private long rejectedRecords;
+
+	/**
+	 * duplicates is "REPLACE", "IGNORE" or empty, and says what happens to records whose key is already in the table.
+	 */
+	public MySQLLoadDataRecordWriter(Connection connection, String tableName, String duplicates, Parser parser) {
+		this.connection = connection;
+		this.sql = String.format("LOAD DATA LOCAL INFILE 'epf' %s INTO TABLE %s CHARACTER SET utf8 (%s)", duplicates, tableName,
+				Joiner.on(", ").join(parser.getColumnNames()));
+		this.encoder = new DelimitedRecordEncoder(parser);
+	}
+
+	public int getBatchSize() {
+		return BATCH_SIZE;
+	}
+
+	public Object encode(List<List<String>> records) {
+		return encoder.encode(records);
+	}
+
+	public long getEncodedSize(Object encoded) {
+		return ((byte[]) encoded).length;
+	}
+
+	public void write(Object encoded, int recordCount) throws SQLException {
+		if (statement == null) {
+			statement = (com.mysql.jdbc.Statement) connection.getJdbcConnection().createStatement();
+		}
+
+		statement.setLocalInfileInputStream(new ByteArrayInputStream((byte[]) encoded));
+		try {
+			statement.execute(sql);
+
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug(String.format("Loaded %d records, %d rows affected", recordCount, statement.getUpdateCount()));
+			}
+		} catch (SQLException e) {
+			LOGGER.error(String.format("Error occured loading a batch of %d records: %s", recordCount, sql), e);
+			rejectedRecords += recordCount;
+		} finally {
+			statement.setLocalInfileInputStream(null);
+		}
+	}
+
+	public long getRejectedRecords() {
+		return rejectedRecords;
+	}
+
+	public void close() throws SQLException {
+		if (statement != null) {
+			statement.close();
+		}
+
+		connection.disconnect();
+	}
+}
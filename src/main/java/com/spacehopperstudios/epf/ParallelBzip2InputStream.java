@@ -0,0 +1,419 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Decompresses bzip2 data (one stream, or several concatenated) by decoding its blocks on a pool of threads, handing the output back in order.
+ *
+ * bzip2 compresses each block of up to 900k independently, and starts each one with a 48 bit magic number; blocks aren't byte-aligned, but the magic can
+ * be found at any bit offset. A scanner thread cuts the input at each block magic and end-of-stream magic, and each block is decoded by wrapping its bits in
+ * a stream header and trailer of its own. The block's CRC, checked by the decoder, makes sure the cut was right: the magic can also turn up by chance
+ * inside compressed data, and a block cut short there fails its CRC, in which case it is joined back up with what follows and decoded again.
+ */
+public class ParallelBzip2InputStream extends InputStream {
+
+	private static final Logger LOGGER = Logger.getLogger(ParallelBzip2InputStream.class);
+
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long END_MAGIC = 0x177245385090L;
+	private static final long MAGIC_MASK = (1L << 48) - 1;
+	private static final int MAGIC_BITS = 48;
+	private static final int CRC_BITS = 32;
+	private static final byte[] STREAM_HEADER = { 'B', 'Z', 'h', '9' }; // the largest block size, which decodes blocks of any size
+
+	/**
+	 * The values bits 16 to 23 of the scan register can have when a magic ends in its last byte, at any of the 8 bit offsets; most bytes rule out both
+	 * magics with one lookup.
+	 */
+	private static final boolean[] MAGIC_BYTES = new boolean[256];
+
+	static {
+		for (int shift = 0; shift < 8; shift++) {
+			MAGIC_BYTES[(int) ((BLOCK_MAGIC << shift) >>> 16) & 0xff] = true;
+			MAGIC_BYTES[(int) ((END_MAGIC << shift) >>> 16) & 0xff] = true;
+		}
+	}
+
+	private static final int READ_SIZE = 64 * 1024;
+	private static final int PIECES_PER_THREAD = 2;
+
+	/**
+	 * Most pieces a block is joined with before giving up on it as corrupt
+	 */
+	private static final int MAX_JOINS = 4;
+
+	/**
+	 * The input between one magic and the next: a block, or the end of a stream (its CRC, padding, and the next stream's header).
+	 */
+	private static class Piece {
+		long base; // offset in the input of data[0]
+		byte[] data;
+		int startBit; // bit offset of the magic in data
+		int endBit; // bit offset of the next magic in data
+		boolean block;
+		Future<byte[]> decoded;
+	}
+
+	private static final Piece END = new Piece();
+
+	private InputStream in;
+	private ExecutorService scanner;
+	private ExecutorService decoders;
+	private BlockingQueue<Piece> pieces;
+	private volatile Throwable failure;
+
+	// consumer-side state
+	private Piece next; // a piece taken while joining, not yet used
+	private boolean ended;
+	private byte[] current;
+	private int currentPos;
+
+	/**
+	 * Decompresses in on threads decoder threads.
+	 */
+	public ParallelBzip2InputStream(InputStream in, int threads) {
+		this.in = in;
+		this.pieces = new ArrayBlockingQueue<Piece>(Math.max(1, threads) * PIECES_PER_THREAD);
+		this.decoders = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactoryBuilder().setNameFormat("epf-bzip2-%d").setDaemon(true).build());
+		this.scanner = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("epf-bzip2-scanner").setDaemon(true).build());
+
+		scanner.execute(new Runnable() {
+			public void run() {
+				scan();
+			}
+		});
+		scanner.shutdown();
+	}
+
+	/**
+	 * Scanner body: cuts the input into pieces at each magic, and has each block decoded.
+	 */
+	private void scan() {
+		try {
+			byte[] buffer = new byte[READ_SIZE];
+			byte[] pending = new byte[READ_SIZE]; // the input from the current piece's first byte on
+			int pendingLength = 0;
+			long pendingBase = 0;
+			long consumed = 0;
+			long register = 0;
+			long pieceStart = -1; // bit offset of the current piece's magic
+			boolean pieceIsBlock = false;
+			int read;
+
+			while ((read = in.read(buffer)) >= 0) {
+				if (pendingLength + read > pending.length) {
+					pending = Arrays.copyOf(pending, Math.max(pendingLength + read, pending.length * 2));
+				}
+
+				System.arraycopy(buffer, 0, pending, pendingLength, read);
+				pendingLength += read;
+
+				for (int i = 0; i < read; i++) {
+					register = (register << 8) | (buffer[i] & 0xff);
+					consumed++;
+
+					if (consumed == 3 && (register & 0xffffff) != ((STREAM_HEADER[0] << 16) | (STREAM_HEADER[1] << 8) | STREAM_HEADER[2])) {
+						throw new IOException("Not bzip2 data");
+					}
+
+					if (!MAGIC_BYTES[(int) (register >>> 16) & 0xff]) {
+						continue;
+					}
+
+					// a magic ending anywhere in this byte, earliest first
+					for (int shift = 7; shift >= 0; shift--) {
+						long value = (register >>> shift) & MAGIC_MASK;
+
+						if (value != BLOCK_MAGIC && value != END_MAGIC) {
+							continue;
+						}
+
+						long magicStart = consumed * 8 - shift - MAGIC_BITS;
+						if (magicStart < 0) {
+							continue;
+						}
+
+						if (pieceStart >= 0) {
+							put(cut(pending, pendingBase, pieceStart, magicStart, pieceIsBlock));
+						}
+
+						pieceStart = magicStart;
+						pieceIsBlock = (value == BLOCK_MAGIC);
+
+						// drop what's before the new piece
+						int drop = (int) ((pieceStart >> 3) - pendingBase);
+						System.arraycopy(pending, drop, pending, 0, pendingLength - drop);
+						pendingLength -= drop;
+						pendingBase += drop;
+					}
+				}
+			}
+
+			if (pieceStart >= 0) {
+				// normally the end of the last stream; a block here was cut off, and will fail to decode
+				put(cut(pending, pendingBase, pieceStart, consumed * 8, pieceIsBlock));
+			}
+
+			put(END);
+		} catch (InterruptedException e) {
+			// closed
+		} catch (Throwable e) {
+			failure = e;
+		}
+	}
+
+	private Piece cut(byte[] pending, long pendingBase, long start, long end, boolean block) {
+		final Piece piece = new Piece();
+		piece.base = start >> 3;
+		int from = (int) (piece.base - pendingBase);
+		int to = (int) (((end + 7) >> 3) - pendingBase);
+		piece.data = Arrays.copyOfRange(pending, from, to);
+		piece.startBit = (int) (start & 7);
+		piece.endBit = (int) (end - (piece.base << 3));
+		piece.block = block;
+
+		if (block) {
+			piece.decoded = decoders.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return decode(piece);
+				}
+			});
+		}
+
+		return piece;
+	}
+
+	private void put(Piece piece) throws InterruptedException {
+		pieces.put(piece);
+	}
+
+	/**
+	 * Decodes the block in piece, by wrapping it as a stream of its own: a header, the block, and an end-of-stream magic whose CRC is the block's.
+	 */
+	private static byte[] decode(Piece piece) throws IOException {
+		int bits = piece.endBit - piece.startBit;
+
+		if (bits < MAGIC_BITS + CRC_BITS) {
+			throw new IOException("Block too short");
+		}
+
+		byte[] stream = new byte[STREAM_HEADER.length + (bits + MAGIC_BITS + CRC_BITS + 7) / 8];
+		System.arraycopy(STREAM_HEADER, 0, stream, 0, STREAM_HEADER.length);
+
+		// shift the block's bits so that it starts on a byte
+		int shift = piece.startBit;
+		int byteCount = (bits + 7) / 8;
+		for (int j = 0; j < byteCount; j++) {
+			int high = piece.data[j] & 0xff;
+			int low = (j + 1 < piece.data.length ? piece.data[j + 1] & 0xff : 0);
+			stream[STREAM_HEADER.length + j] = (byte) ((high << shift) | (low >>> (8 - shift)));
+		}
+
+		if (bits % 8 != 0) {
+			stream[STREAM_HEADER.length + byteCount - 1] &= (byte) (0xff << (8 - bits % 8)); // clear what follows the block
+		}
+
+		long crc = readBits(piece.data, piece.startBit + MAGIC_BITS, CRC_BITS);
+		long position = STREAM_HEADER.length * 8L + bits;
+		position = writeBits(stream, position, END_MAGIC, MAGIC_BITS);
+		writeBits(stream, position, crc, CRC_BITS);
+
+		BZip2CompressorInputStream decoder = new BZip2CompressorInputStream(new ByteArrayInputStream(stream));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = decoder.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupt block", e); // the decoder doesn't always catch bad data itself
+		} finally {
+			decoder.close();
+		}
+
+		return out.toByteArray();
+	}
+
+	private static long readBits(byte[] data, int from, int count) {
+		long value = 0;
+
+		for (int k = from; k < from + count; k++) {
+			value = (value << 1) | ((data[k >> 3] >>> (7 - (k & 7))) & 1);
+		}
+
+		return value;
+	}
+
+	private static long writeBits(byte[] data, long position, long value, int count) {
+		for (int k = count - 1; k >= 0; k--, position++) {
+			if (((value >>> k) & 1) != 0) {
+				data[(int) (position >> 3)] |= (byte) (0x80 >>> (position & 7));
+			}
+		}
+
+		return position;
+	}
+
+	/**
+	 * Joins piece b, which follows piece a in the input, onto the end of a.
+	 */
+	private static Piece join(Piece a, Piece b) {
+		int offset = (int) (b.base - a.base);
+		Piece joined = new Piece();
+		joined.base = a.base;
+		joined.data = Arrays.copyOf(a.data, offset + b.data.length);
+		System.arraycopy(b.data, 0, joined.data, offset, b.data.length);
+		joined.startBit = a.startBit;
+		joined.endBit = offset * 8 + b.endBit;
+		joined.block = true;
+		return joined;
+	}
+
+	/**
+	 * Returns the next decoded block, or null at the end of the data.
+	 */
+	private byte[] nextBlock() throws IOException {
+		while (true) {
+			Piece piece = take();
+
+			if (piece == END) {
+				return null;
+			}
+
+			if (!piece.block) {
+				continue;
+			}
+
+			try {
+				return piece.decoded.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while decompressing", e);
+			} catch (ExecutionException e) {
+				return rejoin(piece, e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Decodes a block that failed to, on the assumption that it was cut short by a magic number occurring by chance, by joining the following pieces onto it.
+	 */
+	private byte[] rejoin(Piece piece, Throwable cause) throws IOException {
+		Piece joined = piece;
+
+		for (int j = 0; j < MAX_JOINS; j++) {
+			Piece following = take();
+
+			if (following == END) {
+				next = END;
+				break;
+			}
+
+			if (following.decoded != null) {
+				following.decoded.cancel(false);
+			}
+
+			joined = join(joined, following);
+
+			try {
+				byte[] block = decode(joined);
+
+				if (LOGGER.isDebugEnabled()) {
+					LOGGER.debug(String.format("Decoded the block at byte %d after joining %d piece(s) onto it", piece.base, j + 1));
+				}
+
+				return block;
+			} catch (IOException e) {
+				cause = e;
+			}
+		}
+
+		throw new IOException(String.format("Corrupt bzip2 block at byte %d", piece.base), cause);
+	}
+
+	private Piece take() throws IOException {
+		if (next != null) {
+			Piece piece = next;
+			next = null;
+			return piece;
+		}
+
+		if (ended) {
+			return END;
+		}
+
+		try {
+			while (true) {
+				Piece piece = pieces.poll(100, TimeUnit.MILLISECONDS);
+
+				if (piece != null) {
+					ended = (piece == END);
+					return piece;
+				}
+
+				if (failure != null) {
+					throw new IOException("Error reading bzip2 data", failure);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decompressing", e);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		while (current == null || currentPos == current.length) {
+			current = nextBlock();
+			currentPos = 0;
+
+			if (current == null) {
+				return -1;
+			}
+		}
+
+		int count = Math.min(len, current.length - currentPos);
+		System.arraycopy(current, currentPos, b, off, count);
+		currentPos += count;
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		scanner.shutdownNow();
+		decoders.shutdownNow();
+		in.close();
+	}
+}
@@ -3,7 +3,9 @@
  */
 package com.spacehopperstudios.epf;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -33,12 +35,25 @@ public class Parser {
 	private static final String DATA_TYPES_TAG = "dbTypes:";
 	private static final String EXPORT_MODE_TAG = "exportMode:";
 	private static final String RECORD_COUNT_TAG = "recordsWritten:";
+	private static final int TRAILER_LENGTH = 40;
+	private static final Pattern YEAR_MATCH = Pattern.compile("^\\d\\d\\d\\d$");
+	static final String EXPORT_DATE_COLUMN = "export_date";
 
 	private List<String> numberTypes;
 	private List<String> dateTypes;
 	private List<Integer> dateColumns;
 	private Map<String, String> dataTypeMap;
 	private List<Integer> numberColumns;
+	private boolean[] dateColumnFlags; // dateColumns, indexed by column
+	private int[] projection; // the file's field for each column, or null if all the file's columns are imported
+	private RowFilter rowFilter; // null if all the file's records are imported
+	private RowDiff rowDiff; // null unless the file is being diffed against a table
+	private ThreadLocal<DateNormalizer> dateNormalizers = new ThreadLocal<DateNormalizer>() {
+		@Override
+		protected DateNormalizer initialValue() {
+			return new DateNormalizer();
+		}
+	};
 	// private Map<String, String> typeMap;
 
 	private String recordDelim = "\u0002\n";
@@ -46,20 +61,60 @@ public class Parser {
 	private String commentChar = "#";
 
 	private long recordsExpected;
+	private boolean recordsEstimated; // recordsExpected is only an estimate, until the trailer of a streamed file is read
 	private long latestRecordNum;
 	private String exportMode;
 	private List<String> columnNames;
 	private List<String> primaryKey;
 	private List<String> dataTypes;
 
-	private RandomAccessFile eFile;
+	private String filePath;
+	private boolean memoryMapped;
+	private RecordScanner scanner;
+	private int parseThreads;
+	private boolean parseOrdered;
+	private ChunkedParser chunkedParser; // set while the rest of the file is being parsed in parallel
+	private RecordIndex recordIndex;
 
+	/**
+	 * Reads the record count from the trailer of the EPF file at filePath, without parsing its header; used to estimate how long a file will take to import.
+	 */
+	public static long readRecordsExpected(String filePath, String recordDelim) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filePath, "r");
+
+		try {
+			long length = file.length();
+			byte[] b = new byte[(int) Math.min(length, TRAILER_LENGTH)];
+			file.seek(length - b.length);
+			file.readFully(b);
+
+			return parseRecordCount(b, "#", recordDelim);
+		} catch (NumberFormatException e) {
+			throw new IOException(String.format("No record count at the end of %s", filePath), e);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static long parseRecordCount(byte[] trailer, String commentChar, String recordDelim) {
+		return parseRecordCount(new String(trailer, Charsets.UTF_8), commentChar, recordDelim);
+	}
+
+	private static long parseRecordCount(String str, String commentChar, String recordDelim) {
+		String[] lst = str.split(commentChar + Parser.RECORD_COUNT_TAG, -1);
+		String numStr = lst[lst.length - 1].split(recordDelim, -1)[0];
+		return Integer.parseInt(numStr);
+	}
+
+	/**
+	 * Number of records the trailer says the file holds; for a streamed file, an estimate until the trailer has been read.
+	 */
 	public long getRecordsExpected() {
 		return recordsExpected;
 	}
 
 	public long getLatestRecordNum() {
-		return latestRecordNum;
+		return chunkedParser == null ? latestRecordNum : chunkedParser.getLatestRecordNum();
 	}
 
 	public String getExportMode() {
@@ -82,6 +137,25 @@ public class Parser {
 		return dataTypes;
 	}
 
+	/**
+	 * Indexes of the columns holding numbers.
+	 */
+	public List<Integer> getNumberColumns() {
+		return numberColumns;
+	}
+
+	/**
+	 * Indexes of the columns holding dates.
+	 */
+	public List<Integer> getDateColumns() {
+		return dateColumns;
+	}
+
+	/**
+	 * Files of at least this size are worth memory-mapping
+	 */
+	public static final long DEFAULT_MMAP_THRESHOLD = 256L * 1024 * 1024;
+
 	public static Map<String, String> DEFAULT_TYPE_MAP;
 
 	public static Map<String, String> POSTGRES_TYPE_MAP;
@@ -97,6 +171,49 @@ public class Parser {
 
 	public Parser(String filePath, Map<String, String> typeMap/* ={"CLOB":"LONGTEXT"} */, String recordDelim/* ='\x02\n' */, String fieldDelim/* ='\x01' */)
 			throws IOException, SubstringNotFoundException {
+		this(filePath, typeMap, recordDelim, fieldDelim, new ImportOptions());
+	}
+
+	public Parser(String filePath, Map<String, String> typeMap/* ={"CLOB":"LONGTEXT"} */, String recordDelim/* ='\x02\n' */, String fieldDelim/* ='\x01' */,
+			ImportOptions options) throws IOException, SubstringNotFoundException {
+		init(filePath, typeMap, recordDelim, fieldDelim);
+
+		long mmapThreshold = options.getMemoryMapThreshold();
+		this.memoryMapped = mmapThreshold >= 0 && new File(filePath).length() >= mmapThreshold;
+		this.scanner = openScanner();
+		this.parseThreads = options.getParseThreads();
+		this.parseOrdered = options.isParseOrdered();
+		if (options.getRecordIndexInterval() > 0) {
+			this.recordIndex = RecordIndex.open(filePath, options.getRecordIndexInterval());
+		}
+
+		// Seek to the end and parse the recordsWritten line
+		byte[] b = this.scanner.readBytes(Math.max(0, this.scanner.length() - TRAILER_LENGTH), TRAILER_LENGTH);
+		this.recordsExpected = parseRecordCount(b, this.commentChar, this.recordDelim);
+		readHeader(options);
+	}
+
+	/**
+	 * Parses an EPF file read from stream rather than from disk, such as a member of an archive; length is its length in bytes, and filePath only names it.
+	 * 
+	 * The stream can only be read front to back, so it is parsed on one thread, without a record index. Until the trailer is reached, at the end of the
+	 * stream, getRecordsExpected() is an estimate made from the lengths of the records in the first buffer read.
+	 */
+	public Parser(String filePath, InputStream stream, long length, Map<String, String> typeMap, String recordDelim, String fieldDelim, ImportOptions options)
+			throws IOException, SubstringNotFoundException {
+		init(filePath, typeMap, recordDelim, fieldDelim);
+
+		this.scanner = new StreamRecordScanner(stream, length, recordDelim, fieldDelim);
+		this.parseThreads = 1; // workers would each need a scanner of their own
+		this.parseOrdered = true;
+		readHeader(options);
+
+		double recordLength = this.scanner.averageRecordLength();
+		this.recordsExpected = (recordLength > 0 ? Math.round(length / recordLength) : 0);
+		this.recordsEstimated = true;
+	}
+
+	private void init(String filePath, Map<String, String> typeMap, String recordDelim, String fieldDelim) {
 		dataTypeMap = typeMap;
 		numberTypes = Arrays.asList(new String[] { "INTEGER", "INT", "BIGINT", "TINYINT" });
 		dateTypes = Arrays.asList(new String[] { "DATE", "DATETIME", "TIME", "TIMESTAMP" });
@@ -112,17 +229,14 @@ public class Parser {
 		this.recordDelim = recordDelim;
 		this.fieldDelim = fieldDelim;
 
-		this.eFile = new RandomAccessFile(filePath, "r");
+		this.filePath = filePath;
+	}
 
-		// Seek to the end and parse the recordsWritten line
-		this.eFile.seek(eFile.length() - 40);
-		byte[] b = new byte[40];
-		this.eFile.read(b);
-		String str = new String(b, Charsets.UTF_8);
-		String[] lst = str.split(this.commentChar + Parser.RECORD_COUNT_TAG, -1);
-		String numStr = lst[lst.length - 1].split(this.recordDelim, -1)[0];
-		this.recordsExpected = Integer.parseInt(numStr);
-		this.eFile.seek(0); // seek back to the beginning
+	/**
+	 * Reads the column names, primary key, data types and export mode from the header, then sets up whatever depends on them.
+	 */
+	private void readHeader(ImportOptions options) throws IOException, SubstringNotFoundException {
+		this.scanner.seek(0); // seek back to the beginning
 		// Extract the column names
 		String line1 = this.nextRowString(false);
 		this.columnNames = this.splitRow(line1, this.commentChar);
@@ -158,7 +272,7 @@ public class Parser {
 				this.exportMode = this.splitRow(aRow, exStart).get(0);
 			}
 		}
-		this.eFile.seek(0); // seek back to the beginning
+		this.scanner.seek(0); // seek back to the beginning
 
 		// Convert any datatypes to mapped counterparts, and cache indexes of date/time types and number types
 		for (int j = 0; j < this.dataTypes.size(); j++) {
@@ -176,6 +290,26 @@ public class Parser {
 			}
 		}
 
+		// the filter refers to the file's own columns, so it's set up before they're narrowed down
+		String filter = options.getRowFilter(new File(filePath).getName());
+		if (filter != null) {
+			this.rowFilter = new RowFilter(filter, this.columnNames, this.numberColumns, this.dateColumns);
+
+			if (LOGGER.isInfoEnabled()) {
+				LOGGER.info(String.format("Importing the records of %s where %s", filePath, filter));
+			}
+		}
+
+		List<String> projectedColumns = options.getProjectedColumns(new File(filePath).getName());
+		if (projectedColumns != null) {
+			project(projectedColumns);
+		}
+
+		this.dateColumnFlags = new boolean[Math.max(this.columnNames.size(), this.dataTypes.size())];
+		for (Integer j : this.dateColumns) {
+			this.dateColumnFlags[j.intValue()] = true;
+		}
+
 		// // Build a dictionary of column names to data types
 		// this.typeMap = new HashMap<String, String>();
 		//
@@ -184,6 +318,94 @@ public class Parser {
 		// }
 	}
 
+	/**
+	 * Narrows the columns down to the selected ones, in file order, so that the other fields of each record are skipped rather than decoded.
+	 * 
+	 * The primary key and export_date are always kept, since incremental imports match and order records by them.
+	 */
+	private void project(List<String> selected) {
+		List<Integer> fields = new ArrayList<Integer>();
+
+		for (int j = 0; j < this.columnNames.size(); j++) {
+			String column = this.columnNames.get(j);
+
+			if (selected.contains(column)) {
+				fields.add(Integer.valueOf(j));
+			} else if (this.primaryKey.contains(column) || EXPORT_DATE_COLUMN.equals(column)) {
+				LOGGER.warn(String.format("Importing column %s of %s, which wasn't selected, as it is needed by incremental imports", column, this.filePath));
+				fields.add(Integer.valueOf(j));
+			}
+		}
+
+		for (String column : selected) {
+			if (!this.columnNames.contains(column)) {
+				LOGGER.warn(String.format("Ignoring selected column %s, which %s doesn't have", column, this.filePath));
+			}
+		}
+
+		List<String> names = new ArrayList<String>();
+		List<String> types = new ArrayList<String>();
+		List<Integer> dates = new ArrayList<Integer>();
+		List<Integer> numbers = new ArrayList<Integer>();
+		this.projection = new int[fields.size()];
+
+		for (int i = 0; i < fields.size(); i++) {
+			Integer j = fields.get(i);
+			this.projection[i] = j.intValue();
+			names.add(this.columnNames.get(j.intValue()));
+
+			if (j.intValue() < this.dataTypes.size()) {
+				types.add(this.dataTypes.get(j.intValue()));
+			}
+
+			if (this.dateColumns.contains(j)) {
+				dates.add(Integer.valueOf(i));
+			}
+
+			if (this.numberColumns.contains(j)) {
+				numbers.add(Integer.valueOf(i));
+			}
+		}
+
+		if (LOGGER.isInfoEnabled()) {
+			LOGGER.info(String.format("Importing %d of the %d columns of %s", names.size(), this.columnNames.size(), this.filePath));
+		}
+
+		this.columnNames = names;
+		this.dataTypes = types;
+		this.dateColumns = dates;
+		this.numberColumns = numbers;
+	}
+
+	/**
+	 * The field of the file's records that holds column.
+	 */
+	private int sourceField(int column) {
+		return this.projection == null ? column : this.projection[column];
+	}
+
+	/**
+	 * Locates the fields of the record recordScanner is on that hold the first colCount columns, returning how many of those columns the record has.
+	 */
+	private int splitColumns(RecordScanner recordScanner, int colCount) {
+		if (colCount == 0) {
+			return 0;
+		}
+
+		int fieldCount = recordScanner.splitFields(sourceField(colCount - 1) + 1); // the fields after the last column's aren't even scanned
+		int available = colCount;
+
+		while (available > 0 && sourceField(available - 1) >= fieldCount) {
+			available--;
+		}
+
+		if (available < colCount) {
+			LOGGER.warn("Number of fields is less than expected");
+		}
+
+		return available;
+	}
+
 	/**
 	 * Sets the underlying file's seek position.
 	 * 
@@ -191,20 +413,25 @@ public class Parser {
 	 */
 	public void setSeekPos(long pos/* =0 */) throws IOException {
 
-		this.eFile.seek(pos);
+		stopParallelParse();
+		this.scanner.seek(pos);
 	}
 
 	/**
 	 * Gets the underlying file's seek position.
+	 * 
+	 * When parsing in parallel, this is the position just after the last record counted by getLatestRecordNum().
 	 */
 	public long getSeekPos() throws IOException {
-		return this.eFile.getFilePointer();
+		return chunkedParser == null ? this.scanner.position() : chunkedParser.getSeekPos();
 	}
 
 	/**
 	 * Set the seek position to the beginning of the recordNumth record.
 	 * 
 	 * Seeks to the beginning of the file if recordNum <=0, or the end if it's greater than the number of records.
+	 * 
+	 * Starts from the nearest checkpoint in the record index, if there is one, and scans forward from there.
 	 */
 	public void seekToRecord(long recordNum) throws IOException {
 
@@ -215,57 +442,65 @@ public class Parser {
 			return;
 		}
 
-		for (long j = 0; j < recordNum; j++) {
+		if (this.recordIndex != null) {
+			long checkpoint = this.recordIndex.checkpointBefore(recordNum);
+			setSeekPos(this.recordIndex.offsetOf(checkpoint));
+			this.latestRecordNum = checkpoint;
+		}
+
+		while (this.latestRecordNum < recordNum) {
+			long before = this.latestRecordNum;
 			this.advanceToNextRecord();
+
+			if (this.latestRecordNum == before) { // end of file
+				break;
+			}
 		}
 	}
 
 	/**
-	 * Returns (as a string) the next row of data (as delimited by this.recordDelim), ignoring comments if ignoreComments is True.
+	 * Set the seek position to pos, a byte offset previously returned by getSeekPos() when recordNum records had been read.
 	 * 
-	 * Leaves the delimiters in place.
-	 * 
-	 * Unfortunately Python doesn't allow line-based reading with user-supplied line separators (http://bugs.python.org/issue1152248), so we use normal line
-	 * reading and then concatenate when we hit 0x02.
+	 * This avoids rescanning the file when resuming. If pos doesn't fall just after a record delimiter it can't be trusted, and this falls back to
+	 * seekToRecord(recordNum).
 	 */
-	public String nextRowString(boolean ignoreComments /* =True */) throws IOException {
+	public void seekToPosition(long recordNum, long pos) throws IOException {
 
-		List<String> lst = new ArrayList<String>();
-		boolean isFirstLine = true;
-		while (true) {
-			String ln = this.eFile.readLine();
-			if (ln == null) { // end of file
-				break;
-			}
+		byte[] delim = this.recordDelim.getBytes(Charsets.UTF_8);
+		boolean atBoundary = pos >= delim.length && pos <= this.scanner.length();
 
-			ln = new String(ln.getBytes(), Charsets.UTF_8);
-			ln += "\n"; // add the line end that seems to fall off when calling readLine
+		if (atBoundary) {
+			// move up to the delimiter before reading it, as a streamed file can't be read ahead of where it is and then gone back over
+			setSeekPos(pos - delim.length);
+			atBoundary = Arrays.equals(this.scanner.readBytes(pos - delim.length, delim.length), delim);
+		}
 
-			if (isFirstLine && ignoreComments && ln.startsWith(this.commentChar)) { // comment
-				continue;
-			}
+		if (!atBoundary) {
+			LOGGER.warn(String.format("Offset %d is not at a record boundary; seeking to record %d instead", pos, recordNum));
+			seekToRecord(recordNum);
+			return;
+		}
 
-			lst.add(ln);
-			if (isFirstLine) {
-				isFirstLine = false;
-			}
+		setSeekPos(pos);
+		this.latestRecordNum = recordNum;
+	}
 
-			if (ln.contains(this.recordDelim)) { // last textual line of this record
-				break;
-			}
-		}
+	/**
+	 * Returns (as a string) the next row of data (as delimited by this.recordDelim), ignoring comments if ignoreComments is True.
+	 * 
+	 * Leaves the delimiters in place.
+	 */
+	public String nextRowString(boolean ignoreComments /* =True */) throws IOException {
 
-		if (lst.size() == 0) {
-			return null;
-		} else {
-			// concatenate the lines into a single string, which is the full content of the row
-			StringBuffer sb = new StringBuffer();
-			for (String string : lst) {
-				sb.append(string);
+		while (this.scanner.nextRecord()) {
+			if (ignoreComments && this.scanner.isComment(this.commentChar.charAt(0))) { // comment
+				continue;
 			}
 
-			return sb.toString();
+			return this.scanner.recordString();
 		}
+
+		return null; // end of file
 	}
 
 	/**
@@ -274,26 +509,79 @@ public class Parser {
 	 */
 	public void advanceToNextRecord() throws IOException {
 
-		while (true) {
-			String ln = this.eFile.readLine();
+		if (!nextDataRecord()) { // end of file
+			return;
+		}
 
-			if (ln == null) { // end of file
-				return;
-			}
+		this.latestRecordNum += 1;
+		recordCheckpoint(this.latestRecordNum, this.scanner.position());
+	}
+
+	/**
+	 * True if the file is being read through a memory mapping.
+	 */
+	public boolean isMemoryMapped() {
+		return this.scanner instanceof MappedRecordScanner;
+	}
 
-			ln = new String(ln.getBytes(), Charsets.UTF_8);
-			ln += "\n"; // add the line end that seems to fall off when calling readLine
+	/**
+	 * Closes the underlying file.
+	 */
+	public void close() throws IOException {
+		stopParallelParse();
+		this.scanner.close();
 
-			if (ln.startsWith(commentChar)) { // comment; always skip
-				continue;
-			}
+		if (this.recordIndex != null) {
+			this.recordIndex.close();
+		}
+	}
 
-			if (ln.contains(this.recordDelim)) { // last textual line of this record
-				break;
-			}
+	/**
+	 * Tells the record index that the records after the first recordNum start at offset; calls must come in ascending order of recordNum.
+	 */
+	void recordCheckpoint(long recordNum, long offset) {
+		if (this.recordIndex != null) {
+			this.recordIndex.record(recordNum, offset);
 		}
+	}
 
-		this.latestRecordNum += 1;
+	/**
+	 * Number of records between record index checkpoints, or 0 if there is no record index.
+	 */
+	int getCheckpointInterval() {
+		return this.recordIndex == null ? 0 : this.recordIndex.getInterval();
+	}
+
+	/**
+	 * Opens a new scanner over the file, of the kind this parser was configured to use.
+	 */
+	RecordScanner openScanner() throws IOException {
+		if (this.memoryMapped) {
+			return new MappedRecordScanner(this.filePath, this.recordDelim, this.fieldDelim);
+		}
+
+		return new FileRecordScanner(this.filePath, this.recordDelim, this.fieldDelim);
+	}
+
+	String getRecordDelim() {
+		return recordDelim;
+	}
+
+	char getCommentChar() {
+		return commentChar.charAt(0);
+	}
+
+	/**
+	 * Abandons any parallel parse, leaving latestRecordNum and the seek position at the last record it handed back.
+	 */
+	private void stopParallelParse() throws IOException {
+		if (this.chunkedParser != null) {
+			this.latestRecordNum = this.chunkedParser.getLatestRecordNum();
+			long pos = this.chunkedParser.getSeekPos();
+			this.chunkedParser.stop();
+			this.chunkedParser = null;
+			this.scanner.seek(pos);
+		}
 	}
 
 	/**
@@ -331,43 +619,243 @@ public class Parser {
 	 */
 	List<String> nextRecord() throws IOException, SubstringNotFoundException {
 
-		String rowString = nextRowString(true);
-		if (rowString != null) {
-			this.latestRecordNum += 1; // update the record counter
-			List<String> rec = this.splitRow(rowString, null);
+		if (this.parseThreads > 1) {
+			if (this.chunkedParser == null) {
+				this.chunkedParser = new ChunkedParser(this, this.scanner, this.scanner.position(), this.latestRecordNum, this.parseThreads, this.parseOrdered);
+			}
 
-			if (rec.size() > this.columnNames.size()) {
-				rec = rec.subList(0, this.columnNames.size()); // if there are more data records than column names,
-				// trim any surplus records via a slice
-			} else if (rec.size() < this.columnNames.size()) {
-				LOGGER.warn("Number of fields is less than expected");
+			return this.chunkedParser.nextRecord();
+		}
+
+		while (nextDataRecord()) {
+			this.latestRecordNum += 1; // update the record counter, which counts filtered out records too
+			recordCheckpoint(this.latestRecordNum, this.scanner.position());
+
+			if (accepts(this.scanner)) {
+				return buildRecord(this.scanner);
 			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * True if the record recordScanner is on passes the row filter, which only looks at the fields it refers to, and, when the file is being diffed, changes
+	 * the table.
+	 * 
+	 * Like buildRecord(), safe for workers to call concurrently with their own scanners.
+	 */
+	boolean accepts(RecordScanner recordScanner) {
+		return (this.rowFilter == null || this.rowFilter.accepts(recordScanner, this.dateNormalizers.get()))
+				&& (this.rowDiff == null || this.rowDiff.accepts(recordScanner));
+	}
+
+	/**
+	 * Diffs the records from here on against a table, handing back only those that change it; null stops diffing.
+	 */
+	void setRowDiff(RowDiff rowDiff) {
+		this.rowDiff = rowDiff;
+	}
+
+	RowDiff getRowDiff() {
+		return rowDiff;
+	}
+
+	/**
+	 * The fields of the file's records that hold columns, which must be among getColumnNames().
+	 */
+	int[] sourceFields(List<String> columns) {
+		int[] fields = new int[columns.size()];
+
+		for (int j = 0; j < fields.length; j++) {
+			fields[j] = sourceField(this.columnNames.indexOf(columns.get(j)));
+		}
+
+		return fields;
+	}
 
-			// replace empty strings with NULL
-			for (int i = 0; i < rec.size(); i++) {
-				String val = rec.get(i);
-				rec.set(i, (val.length() == 0 ? "NULL" : val));
+	/**
+	 * Builds the record list for the record recordScanner is on.
+	 * 
+	 * Only reads state that is fixed once the header has been parsed, so workers can call it concurrently with their own scanners.
+	 */
+	List<String> buildRecord(RecordScanner recordScanner) {
+
+		// if there are more data records than column names, the surplus fields are ignored
+		int fieldCount = splitColumns(recordScanner, this.columnNames.size());
+
+		// decode each field once, replacing empty strings with NULL and massaging dates into MySQL-compatible format
+		DateNormalizer dateNormalizer = this.dateNormalizers.get();
+		List<String> rec = new ArrayList<String>(fieldCount);
+		for (int i = 0; i < fieldCount; i++) {
+			int field = sourceField(i);
+
+			if (recordScanner.fieldLength(field) == 0) {
+				rec.add("NULL");
+			} else if (this.dateColumnFlags[i] && dateNormalizer.normalize(recordScanner, field)) {
+				rec.add(dateNormalizer.getString());
+			} else {
+				rec.add(this.dateColumnFlags[i] ? normalizeDate(recordScanner.field(field)) : recordScanner.field(field));
 			}
-			// massage dates into MySQL-compatible format.
-			// most date values look like '2009 06 21'; some are '2005-09-06-00:00:00-Etc/GMT'
-			// there are also some cases where there's only a year; we'll pad it out with a bogus month/day
-			Pattern yearMatch = Pattern.compile("^\\d\\d\\d\\d$");
-			for (Integer j : this.dateColumns) {
-				String corrected = rec.get(j.intValue()).trim().replace(" ", "-");
-
-				if (corrected.length() > 19) {
-					corrected = corrected.substring(0, 19);
-				}
+		}
+		return rec;
+	}
 
-				rec.set(j.intValue(), corrected); // Include at most the first 19 chars
+	/**
+	 * Massages a date into MySQL-compatible format.
+	 * 
+	 * Most date values look like '2009 06 21'; some are '2005-09-06-00:00:00-Etc/GMT'. There are also some cases where there's only a year; we'll pad it out
+	 * with a bogus month/day.
+	 */
+	static String normalizeDate(String value) {
+		String corrected = value.trim().replace(" ", "-");
+
+		if (corrected.length() > 19) {
+			corrected = corrected.substring(0, 19); // Include at most the first 19 chars
+		}
+
+		if (YEAR_MATCH.matcher(corrected).matches()) {
+			corrected = String.format("%s-01-01", corrected);
+		}
+
+		return corrected;
+	}
+
+	/**
+	 * Returns an empty batch for this file's records, with room for capacity of them.
+	 */
+	public RecordBatch newRecordBatch(int capacity) {
+		int[] kinds = new int[this.columnNames.size()];
+
+		for (Integer j : this.numberColumns) {
+			if (j.intValue() < kinds.length) {
+				kinds[j.intValue()] = RecordBatch.NUMBER;
+			}
+		}
+
+		for (Integer j : this.dateColumns) {
+			if (j.intValue() < kinds.length) {
+				kinds[j.intValue()] = RecordBatch.DATE;
+			}
+		}
+
+		return new RecordBatch(kinds, capacity);
+	}
+
+	/**
+	 * Refills batch with the next maxNum records (or fewer if EOF), returning how many there are.
+	 * 
+	 * Unless the file is being parsed in parallel, numbers and dates are decoded straight from the file's bytes, without making strings of them.
+	 */
+	public int nextRecords(RecordBatch batch, int maxNum) throws IOException, SubstringNotFoundException {
+
+		batch.reset(maxNum);
+
+		if (this.parseThreads > 1) {
+			List<String> lst;
+			while (batch.size() < maxNum && (lst = this.nextRecord()) != null && lst.size() != 0) {
+				batch.addRecord(lst);
+			}
+
+			return batch.size();
+		}
+
+		while (batch.size() < maxNum && nextDataRecord()) {
+			this.latestRecordNum += 1; // update the record counter
+			recordCheckpoint(this.latestRecordNum, this.scanner.position());
+
+			if (accepts(this.scanner)) {
+				decodeRecord(this.scanner, batch);
+			}
+		}
 
-				if (yearMatch.matcher(rec.get(j.intValue())).matches()) {
-					rec.set(j.intValue(), String.format("%s-01-01", rec.get(j.intValue())));
+		return batch.size();
+	}
+
+	/**
+	 * Adds the record recordScanner is on to batch; the typed counterpart of buildRecord().
+	 */
+	void decodeRecord(RecordScanner recordScanner, RecordBatch batch) {
+
+		int colCount = batch.getColumnCount();
+		int fieldCount = splitColumns(recordScanner, colCount);
+		int row = batch.addRow();
+
+		for (int i = 0; i < colCount; i++) {
+			int field = sourceField(i);
+			int length = (i < fieldCount ? recordScanner.fieldLength(field) : 0);
+
+			if (length == 0 || (length == 4 && isNullLiteral(recordScanner, field))) {
+				batch.setNull(row, i);
+			} else if (batch.getKind(i) == RecordBatch.TEXT) {
+				batch.setString(row, i, recordScanner.field(field));
+			} else if (batch.getKind(i) == RecordBatch.DATE) {
+				DateNormalizer dateNormalizer = this.dateNormalizers.get();
+
+				if (!dateNormalizer.normalize(recordScanner, field)) {
+					batch.setString(row, i, normalizeDate(recordScanner.field(field)));
+				} else if (dateNormalizer.getEpochMillis() != Long.MIN_VALUE) {
+					batch.setLong(row, i, dateNormalizer.getEpochMillis());
+				} else {
+					batch.setString(row, i, dateNormalizer.getString());
+				}
+			} else {
+				char[] chars = batch.scratch(length);
+				for (int k = 0; k < length; k++) {
+					chars[k] = (char) (recordScanner.fieldByte(field, k) & 0xff);
+				}
+
+				if (!batch.setDecoded(row, i, length)) {
+					batch.setString(row, i, recordScanner.field(field));
 				}
 			}
-			return rec;
-		} else {
-			return null;
+		}
+	}
+
+	/**
+	 * True if the 4 byte field i is "NULL" or "null", which the writers have always taken as NULL.
+	 */
+	private static boolean isNullLiteral(RecordScanner recordScanner, int i) {
+		byte first = recordScanner.fieldByte(i, 0);
+
+		if (first == 'N') {
+			return recordScanner.fieldByte(i, 1) == 'U' && recordScanner.fieldByte(i, 2) == 'L' && recordScanner.fieldByte(i, 3) == 'L';
+		}
+
+		return first == 'n' && recordScanner.fieldByte(i, 1) == 'u' && recordScanner.fieldByte(i, 2) == 'l' && recordScanner.fieldByte(i, 3) == 'l';
+	}
+
+	/**
+	 * Moves the scanner onto the next non-comment record, returning false if we're out of data.
+	 */
+	private boolean nextDataRecord() throws IOException {
+
+		while (this.scanner.nextRecord()) {
+			if (!this.scanner.isComment(this.commentChar.charAt(0))) {
+				return true;
+			}
+
+			if (this.recordsEstimated) {
+				readRecordCount();
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Takes the record count from the comment row the scanner is on if it's the trailer, which a streamed file only gets to at its end.
+	 */
+	private void readRecordCount() {
+		String row = this.scanner.recordString();
+
+		if (row.startsWith(this.commentChar + Parser.RECORD_COUNT_TAG)) {
+			try {
+				this.recordsExpected = parseRecordCount(row, this.commentChar, this.recordDelim);
+				this.recordsEstimated = false;
+			} catch (NumberFormatException e) {
+				LOGGER.warn(String.format("Unreadable record count at the end of %s", this.filePath));
+			}
 		}
 	}
 
@@ -0,0 +1,81 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import com.google.common.base.Joiner;
+import com.spacehopperstudios.database.Connection;
+
+/**
+ * {@link RecordWriter} streaming each batch into Postgres with COPY ... FROM STDIN in text format.
+ *
+ * Records are encoded straight into COPY's wire format by a {@link DelimitedRecordEncoder}, without any SQL text being built. Each batch is its own COPY
+ * (and so its own transaction), which keeps the resume bookkeeping as exact as for the other writers.
+ */
+public class PostgresCopyRecordWriter implements RecordWriter {
+
+	private static final Logger LOGGER = Logger.getLogger(PostgresCopyRecordWriter.class);
+
+	public static final int BATCH_SIZE = 10000;
+
+	private Connection connection;
+	private String sql;
+	private DelimitedRecordEncoder encoder;
+	private CopyManager copyManager;
+	private long rejectedRecords;
+
+	public PostgresCopyRecordWriter(Connection connection, String tableName, Parser parser) {
+		this.connection = connection;
+		this.sql = String.format("COPY %s (%s) FROM STDIN", tableName, Joiner.on(", ").join(parser.getColumnNames()));
+		this.encoder = new DelimitedRecordEncoder(parser);
+	}
+
+	public int getBatchSize() {
+		return BATCH_SIZE;
+	}
+
+	public Object encode(List<List<String>> records) {
+		return encoder.encode(records);
+	}
+
+	public long getEncodedSize(Object encoded) {
+		return ((byte[]) encoded).length;
+	}
+
+	public void write(Object encoded, int recordCount) throws SQLException {
+		if (copyManager == null) {
+			copyManager = ((PGConnection) connection.getJdbcConnection()).getCopyAPI();
+		}
+
+		byte[] rows = (byte[]) encoded;
+
+		CopyIn copyIn = copyManager.copyIn(sql);
+		try {
+			copyIn.writeToCopy(rows, 0, rows.length);
+			copyIn.endCopy();
+		} catch (SQLException e) {
+			LOGGER.error(String.format("Error occured copying a batch of %d records: %s", recordCount, sql), e);
+			rejectedRecords += recordCount;
+
+			if (copyIn.isActive()) {
+				copyIn.cancelCopy();
+			}
+		}
+	}
+
+	public long getRejectedRecords() {
+		return rejectedRecords;
+	}
+
+	public void close() throws SQLException {
+		connection.disconnect();
+	}
+}
@@ -1,8 +1,10 @@
 package com.spacehopperstudios.epf;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -19,8 +21,22 @@ public class PostgresSQLIngester extends Ingester {
 	private Parser parser;
 
 	public PostgresSQLIngester(String filePath, String tablePrefix, String dbHost, String dbUser, String dbPassword, String dbName, String recordDelim, String fieldDelim) throws IOException, SubstringNotFoundException {
-		super(filePath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim);
-		parser = new Parser(filePath, Parser.POSTGRES_TYPE_MAP, recordDelim, fieldDelim);
+		this(filePath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, new ImportOptions());
+	}
+
+	public PostgresSQLIngester(String filePath, String tablePrefix, String dbHost, String dbUser, String dbPassword, String dbName, String recordDelim, String fieldDelim,
+			ImportOptions options) throws IOException, SubstringNotFoundException {
+		super(filePath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, options);
+		parser = new Parser(filePath, Parser.POSTGRES_TYPE_MAP, recordDelim, fieldDelim, options);
+	}
+
+	/**
+	 * Ingests length bytes read from stream, such as a member of an archive, as the EPF file filePath.
+	 */
+	public PostgresSQLIngester(String filePath, InputStream stream, long length, String tablePrefix, String dbHost, String dbUser, String dbPassword, String dbName,
+			String recordDelim, String fieldDelim, ImportOptions options) throws IOException, SubstringNotFoundException {
+		super(filePath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, options);
+		parser = new Parser(filePath, stream, length, Parser.POSTGRES_TYPE_MAP, recordDelim, fieldDelim, options);
 	}
 
 	@Override
@@ -28,6 +44,133 @@ public class PostgresSQLIngester extends Ingester {
 		return parser;
 	}
 
+	/**
+	 * Establish a connection to the database, asking the driver to rewrite batched inserts into multi-row ones, and to let the server infer the type of string parameters (so they can be bound to numeric columns).
+	 */
+	@Override
+	public Connection connect() throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+
+		Connection conn = super.connect();
+		conn.setProperty("reWriteBatchedInserts", "true");
+		conn.setProperty("stringtype", "unspecified");
+		return conn;
+	}
+
+	/**
+	 * Uses COPY in the bulk write mode, except when updating a table in place, which COPY can't do.
+	 * 
+	 * Postgres has no INSERT IGNORE, so if skipKeyViolators is True and the key is already on the table (i.e. not deferred until after the load, when the
+	 * duplicates are removed), records are inserted with ON CONFLICT DO NOTHING instead. COPY can't skip them either, one such record rejecting its whole
+	 * batch, so batched inserts are used in the bulk write mode then.
+	 */
+	@Override
+	protected RecordWriter createRecordWriter(String tableName, boolean isIncremental, boolean skipKeyViolators) throws InstantiationException,
+			IllegalAccessException, ClassNotFoundException {
+
+		List<String> pCols = this.getParser().getPrimaryKey();
+		boolean skipDuplicates = (skipKeyViolators && !isIncremental && pCols.size() > 0 && !this.getOptions().isDeferIndexes());
+
+		if (this.getOptions().getWriteMode() == ImportOptions.WriteMode.BULK && !isIncremental && !skipDuplicates) {
+			return new PostgresCopyRecordWriter(this.connect(), tableName, this.getParser());
+		}
+
+		String conflictClause = null;
+		if (isIncremental && pCols.size() > 0) {
+			// Postgres has no REPLACE; updating in place is an upsert instead
+			conflictClause = upsertClause(tableName);
+		} else if (skipDuplicates) {
+			conflictClause = String.format("ON CONFLICT (%s) DO NOTHING", Joiner.on(", ").join(pCols));
+		}
+
+		if (conflictClause == null) {
+			return super.createRecordWriter(tableName, isIncremental, false);
+		}
+
+		String colNamesStr = Joiner.on(", ").join(getParser().getColumnNames());
+		String prefix = String.format("INSERT INTO %s (%s) VALUES ", tableName, colNamesStr);
+
+		if (this.getOptions().getWriteMode() != ImportOptions.WriteMode.STATEMENT) {
+			String placeholders = Joiner.on(", ").join(Collections.nCopies(getParser().getColumnNames().size(), "?"));
+			return new BatchRecordWriter(this.connect(), String.format("%s(%s) %s", prefix, placeholders, conflictClause), getParser());
+		}
+
+		return new StatementRecordWriter(this, this.connect(), prefix, " " + conflictClause);
+	}
+
+	/**
+	 * Creates and returns the ON CONFLICT clause that turns an INSERT into tableName into an upsert, only overwriting rows with an export_date no later than
+	 * the incoming one's.
+	 */
+	public String upsertClause(String tableName) {
+
+		List<String> pCols = this.getParser().getPrimaryKey();
+		List<String> substrings = new ArrayList<String>();
+		for (String aCol : this.getParser().getColumnNames()) {
+			if (!pCols.contains(aCol)) {
+				substrings.add(String.format("%s = EXCLUDED.%s", aCol, aCol));
+			}
+		}
+
+		String pkStr = Joiner.on(", ").join(pCols);
+		if (substrings.isEmpty()) {
+			return String.format("ON CONFLICT (%s) DO NOTHING", pkStr);
+		}
+
+		return String.format("ON CONFLICT (%s) DO UPDATE SET %s WHERE %s.export_date <= EXCLUDED.export_date", pkStr, Joiner.on(", ").join(substrings),
+				tableName);
+	}
+
+	/**
+	 * Uses the planner's estimate in pg_class, which ANALYZE and autovacuum keep current. A table that has never been analyzed has none.
+	 */
+	public long estimateRowCount(String tableName) throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+
+		Connection conn = this.connect();
+		long rowCount;
+		try {
+			conn.execute("SELECT reltuples::bigint AS count FROM pg_class WHERE relname = ? AND relkind = 'r' AND pg_table_is_visible(oid)", tableName);
+			rowCount = (conn.nextRow() ? ((Number) conn.getCurrentRowValue("count")).longValue() : -1);
+		} finally {
+			conn.disconnect();
+		}
+
+		return (rowCount > 0 ? rowCount : -1);
+	}
+
+	/**
+	 * An in place update is a round of upserts through the primary key index; a merge is mostly sequential scans, writes and one index build.
+	 */
+	protected double getDefaultNanosPerRow(IncrementalStats.Strategy strategy) {
+		return (strategy == IncrementalStats.Strategy.IN_PLACE ? 50000 : 5000);
+	}
+
+	/**
+	 * Applies the rows of this.getIncTableName() to the target table in place, with a single INSERT ... ON CONFLICT DO UPDATE; a table without a primary
+	 * key has nothing for ON CONFLICT to match.
+	 */
+	@Override
+	protected boolean upsertIncTable() throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+
+		if (this.getParser().getPrimaryKey().size() == 0) {
+			return false;
+		}
+
+		LOGGER.info("Upserting into existing table...");
+
+		String colNamesStr = Joiner.on(", ").join(getParser().getColumnNames());
+		String exStr = String.format("INSERT INTO %s (%s) SELECT %s FROM %s %s", this.getTableName(), colNamesStr, colNamesStr, this.getIncTableName(),
+				upsertClause(this.getTableName()));
+
+		Connection conn = this.connect();
+		try {
+			conn.execute(exStr);
+		} finally {
+			conn.disconnect();
+		}
+
+		return true;
+	}
+
 	/**
 	 * Convenience method which returns True if tableName exists in the db, False if not.
 	 *
@@ -38,7 +181,7 @@ public class PostgresSQLIngester extends Ingester {
 	public boolean tableExists(String tableName/* =null */, Connection connection/* =null */) throws SQLException, InstantiationException,
 			IllegalAccessException, ClassNotFoundException {
 
-		String exStr = "SELECT COUNT(*) AS count FROM information_schema.tables WHERE table_schema = '%s' AND table_name = '%s'";
+		String exStr = "SELECT COUNT(*) AS count FROM information_schema.tables WHERE table_schema = ? AND table_name = ?";
 
 		if (tableName == null) {
 			tableName = this.getTableName();
@@ -51,12 +194,15 @@ public class PostgresSQLIngester extends Ingester {
 			conn = connection;
 		}
 
-		conn.executeQuery(String.format(exStr, this.getDbName(), tableName));
-		conn.fetchNextRow(); // this will always be a 1-tuple; the items's value will be 0 or 1
-		boolean doesExist = (conn.getCurrentRowInteger("count") == 1);
-
-		if (connection == null) {
-			conn.disconnect();
+		boolean doesExist;
+		try {
+			conn.execute(exStr, this.getDbName(), tableName);
+			conn.fetchNextRow(); // this will always be a 1-tuple; the items's value will be 0 or 1
+			doesExist = (conn.getCurrentRowInteger("count") == 1);
+		} finally {
+			if (connection == null) {
+				conn.disconnect();
+			}
 		}
 
 		return doesExist;
@@ -84,14 +230,17 @@ public class PostgresSQLIngester extends Ingester {
 			conn = connection;
 		}
 
-		String exStr = String.format("SELECT COUNT(*) AS count FROM information_schema.COLUMNS where TABLE_NAME='%s';", tableName);
-		conn.executeQuery(exStr); // cur.execute() returns the number of rows,
-		// which for SHOW COLUMNS is the number of columns in the table
-
-		int colCount = conn.getCurrentRowInteger("count");
+		String exStr = "SELECT COUNT(*) AS count FROM information_schema.COLUMNS where TABLE_NAME=?";
+		int colCount;
+		try {
+			conn.execute(exStr, tableName); // cur.execute() returns the number of rows,
+			// which for SHOW COLUMNS is the number of columns in the table
 
-		if (connection == null) {
-			conn.disconnect();
+			colCount = conn.getCurrentRowInteger("count");
+		} finally {
+			if (connection == null) {
+				conn.disconnect();
+			}
 		}
 
 		return colCount;
@@ -100,14 +249,11 @@ public class PostgresSQLIngester extends Ingester {
 	/**
 	 * Connect to the db and create a table named this.getTableName()_TMP, dropping previous one if it exists.
 	 *
-	 * Also adds primary key constraint to the new table.
+	 * Also adds primary key constraint to the new table, unless the import options defer it until the table has been populated.
 	 */
 	public void createTable(String tableName) throws NullPointerException, SQLException, InstantiationException, IllegalAccessException,
 			ClassNotFoundException {
 
-		Connection conn = this.connect();
-
-		conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", tableName));
 		// create the column name part of the table creation string
 		String colDef;
 		List<String> lst = new ArrayList<String>();
@@ -119,10 +265,19 @@ public class PostgresSQLIngester extends Ingester {
 		String paramStr = Joiner.on(", ").join(lst);
 		// paramString now looks like "export_date BIGINT, storefront_id INT, country_code VARCHAR(100)" etc.
 		String exStr = String.format("CREATE TABLE %s (%s)", tableName, paramStr);
-		conn.executeQuery(exStr); // create the table in the database
+
+		Connection conn = this.connect();
+		try {
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", tableName));
+			conn.executeQuery(exStr); // create the table in the database
+		} finally {
+			conn.disconnect();
+		}
+
 		// set the primary key
-		conn.disconnect();
-		applyPrimaryKeyConstraints(tableName);
+		if (!this.getOptions().isDeferIndexes()) {
+			applyPrimaryKeyConstraints(tableName);
+		}
 	}
 
 	/**
@@ -134,11 +289,52 @@ public class PostgresSQLIngester extends Ingester {
 		List<String> pkLst = this.getParser().getPrimaryKey();
 
 		if (pkLst != null) {
-			Connection conn = this.connect();
 			String pkStr = Joiner.on(", ").join(pkLst);
 
-			String exStr = String.format("ALTER TABLE %s ADD CONSTRAINT %s PRIMARY KEY (%s)", tableName, tableName+"_pk", pkStr);
-			conn.executeQuery(exStr);
+			// let Postgres name the constraint; an explicit name would clash with the one the previous import's table took with it when it was renamed
+			String exStr = String.format("ALTER TABLE %s ADD PRIMARY KEY (%s)", tableName, pkStr);
+
+			Connection conn = this.connect();
+			try {
+				conn.executeQuery(exStr);
+			} finally {
+				conn.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Deletes all but the first-loaded row of each set of rows sharing a primary key, using the physical row id (ctid) to tell them apart.
+	 */
+	public long removeDuplicateKeys(String tableName) throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+
+		List<String> conditions = new ArrayList<String>();
+		for (String aCol : this.getParser().getPrimaryKey()) {
+			conditions.add(String.format("a.%s = b.%s", aCol, aCol));
+		}
+
+		Connection conn = this.connect();
+		long removed;
+		try {
+			conn.executeQuery(String.format("DELETE FROM %s a USING %s b WHERE a.ctid > b.ctid AND %s", tableName, tableName, Joiner.on(" AND ").join(conditions)));
+			removed = conn.getAffectedRowCount();
+		} finally {
+			conn.disconnect();
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Creates an index on columns of tableName; Postgres names it, since index names must be unique across the schema and the table will be renamed.
+	 */
+	public void createIndex(String tableName, List<String> columns) throws SQLException, InstantiationException, IllegalAccessException,
+			ClassNotFoundException {
+
+		Connection conn = this.connect();
+		try {
+			conn.executeQuery(String.format("CREATE INDEX ON %s (%s)", tableName, Joiner.on(", ").join(columns)));
+		} finally {
 			conn.disconnect();
 		}
 	}
@@ -170,8 +366,11 @@ public class PostgresSQLIngester extends Ingester {
 	public void dropTable(String tableName) throws NullPointerException, SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
 
 		Connection conn = this.connect();
-		conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", tableName));
-		conn.disconnect();
+		try {
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", tableName));
+		} finally {
+			conn.disconnect();
+		}
 	}
 
 	/**
@@ -183,24 +382,28 @@ public class PostgresSQLIngester extends Ingester {
 
 		Connection conn = this.connect();
 
-		// first, rename the existing "real" table, so we can restore it if something goes wrong
-		String targetOld = targetTable + "_old";
-		conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", targetOld));
-		if (this.tableExists(targetTable, conn)) {
-			conn.executeQuery(String.format("ALTER TABLE %s RENAME TO %s", targetTable, targetOld));
-		}
-		// now rename the new table to replace the old table
 		try {
-			conn.executeQuery(String.format("ALTER TABLE %s RENAME TO %s", sourceTable, targetTable));
-		} catch (SQLException e) {
-			LOGGER.error("Could not rename tmp table; reverting to original table (if it exists).", e);
-			if (this.tableExists(targetOld, conn)) {
-				conn.executeQuery(String.format("ALTER TABLE %s RENAME TO %s", targetOld, targetTable));
+			// first, rename the existing "real" table, so we can restore it if something goes wrong
+			String targetOld = targetTable + "_old";
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", targetOld));
+			if (this.tableExists(targetTable, conn)) {
+				conn.executeQuery(String.format("ALTER TABLE %s RENAME TO %s", targetTable, targetOld));
 			}
+			// now rename the new table to replace the old table
+			try {
+				conn.executeQuery(String.format("ALTER TABLE %s RENAME TO %s", sourceTable, targetTable));
+			} catch (SQLException e) {
+				LOGGER.error("Could not rename tmp table; reverting to original table (if it exists).", e);
+				if (this.tableExists(targetOld, conn)) {
+					conn.executeQuery(String.format("ALTER TABLE %s RENAME TO %s", targetOld, targetTable));
+				}
+			}
+			// Drop sourceTable so it's not hanging around
+			// drop the old table
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", targetOld));
+		} finally {
+			conn.disconnect();
 		}
-		// Drop sourceTable so it's not hanging around
-		// drop the old table
-		conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", targetOld));
 	}
 
 	/**
@@ -208,11 +411,15 @@ public class PostgresSQLIngester extends Ingester {
 	 */
 	public void createUnionTable() throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException {
 
-		Connection conn = this.connect();
-		conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", this.getUnionTableName()));
 		String exStr = String.format("CREATE TABLE %s %s", this.getUnionTableName(), incrementalUnionString());
-		conn.executeQuery(exStr);
-		conn.disconnect();
+
+		Connection conn = this.connect();
+		try {
+			conn.executeQuery(String.format("DROP TABLE IF EXISTS %s", this.getUnionTableName()));
+			conn.executeQuery(exStr);
+		} finally {
+			conn.disconnect();
+		}
 	}
 
 	/**
@@ -233,11 +440,14 @@ public class PostgresSQLIngester extends Ingester {
 
 	/**
 	 * Creates and returns the appropriate SELECT statement used when pruning the target table during an incremental ingest
+	 *
+	 * Postgres plans the NOT EXISTS as a hash anti-join on the primary key, rather than running the COUNT(*) subquery it replaces once per row of the target
+	 * table.
 	 */
 	public String incrementalSelectString() {
 
 		String whereClause = incrementalWhereClause();
-		String selectString = String.format("SELECT * FROM %s WHERE 0 = (SELECT COUNT(*) FROM %s %s)", this.getTableName(), this.getIncTableName(), whereClause);
+		String selectString = String.format("SELECT * FROM %s WHERE NOT EXISTS (SELECT 1 FROM %s %s)", this.getTableName(), this.getIncTableName(), whereClause);
 		return selectString;
 	}
 
@@ -249,7 +459,7 @@ public class PostgresSQLIngester extends Ingester {
 	public String incrementalUnionString() {
 
 		String selectString = incrementalSelectString();
-		String unionString = String.format("IGNORE SELECT * FROM %s UNION ALL %s", this.getIncTableName(), selectString);
+		String unionString = String.format("AS SELECT * FROM %s UNION ALL %s", this.getIncTableName(), selectString);
 
 		return unionString;
 	}
@@ -3,6 +3,7 @@
  */
 package com.spacehopperstudios.epf;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -16,11 +17,19 @@ import java.io.OutputStreamWriter;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import org.apache.commons.cli.CommandLine;
@@ -28,22 +37,33 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.log4j.Logger;
 import org.apache.log4j.xml.DOMConfigurator;
 
 import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.spacehopperstudios.database.ConnectionPool;
 
 public class Program {
 
-	private static final String USAGE_FORMAT = "usage: %s [-fxrak] [-d db_host] [-u db_user] [-p db_password] [-n db_name]" + "\r\n"
+	private static final String USAGE_FORMAT = "usage: %s [-fxrakmoyzv] [-j parse_threads] [-e encode_threads] [-c connections] [-l concurrent_files] [-g max_big_files] [-i write_mode] [-d db_host] [-u db_user] [-p db_password] [-n db_name]" + "\r\n"
 			+ "[-s record_separator] [-t field_separator] [-w regex [-w regex2 [...]]]" + "\r\n"
-			+ "[-b regex [-b regex2 [...]]] source_directory [source_directory2 ...]";
+			+ "[-b regex [-b regex2 [...]]] source_directory_or_tbz [source_directory_or_tbz2 ...]";
+
+	/**
+	 * Sources with these extensions are bzip2-compressed tar archives, whose members are imported straight out of the archive
+	 */
+	private static final Pattern ARCHIVE_MATCH = Pattern.compile(".*\\.(tbz|tbz2|tar\\.bz2)$");
+	private static final int ARCHIVE_BUFFER_SIZE = 1024 * 1024;
 
 	private static final String OPTION_SHORT_FLAT = "f";
 	private static final String OPTION_FULL_FLAT = "flat";
@@ -87,6 +107,65 @@ public class Program {
 	private static final String OPTION_SHORT_SKIPKEYVIOLATORS = "k";
 	private static final String OPTION_FULL_SKIPKEYVIOLATORS = "skipkeyviolators";
 
+	private static final String OPTION_SHORT_MMAP = "m";
+	private static final String OPTION_FULL_MMAP = "mmap";
+
+	private static final String OPTION_SHORT_PARSETHREADS = "j";
+	private static final String OPTION_FULL_PARSETHREADS = "parsethreads";
+
+	private static final String OPTION_SHORT_UNORDERED = "o";
+	private static final String OPTION_FULL_UNORDERED = "unordered";
+
+	private static final String OPTION_SHORT_WRITEMODE = "i";
+	private static final String OPTION_FULL_WRITEMODE = "writemode";
+
+	private static final String OPTION_SHORT_ENCODETHREADS = "e";
+	private static final String OPTION_FULL_ENCODETHREADS = "encodethreads";
+
+	private static final String OPTION_SHORT_WRITETHREADS = "c";
+	private static final String OPTION_FULL_WRITETHREADS = "connections";
+
+	private static final String OPTION_SHORT_IMPORTTHREADS = "l";
+	private static final String OPTION_FULL_IMPORTTHREADS = "concurrentfiles";
+
+	private static final String OPTION_SHORT_MAXBIGFILES = "g";
+	private static final String OPTION_FULL_MAXBIGFILES = "maxbigfiles";
+
+	private static final String OPTION_SHORT_DEFERINDEXES = "y";
+	private static final String OPTION_FULL_DEFERINDEXES = "deferindexes";
+
+	private static final String OPTION_SHORT_UPSERT = "z";
+	private static final String OPTION_FULL_UPSERT = "upsert";
+
+	private static final String OPTION_SHORT_ADAPTIVEBATCHES = "v";
+	private static final String OPTION_FULL_ADAPTIVEBATCHES = "adaptivebatches";
+
+	/**
+	 * Config file only: an object mapping EPF file names to the indexes to build on their tables, each a string of comma separated columns
+	 */
+	private static final String OPTION_FULL_INDEXES = "indexes";
+
+	/**
+	 * Config file only: an object mapping EPF file names to the columns of theirs to import, as an array of column names
+	 */
+	private static final String OPTION_FULL_COLUMNS = "columns";
+
+	/**
+	 * Config file only: an object mapping EPF file names to the condition their records must meet to be imported, e.g. "storefront_id IN (143441, 143444)"
+	 */
+	private static final String OPTION_FULL_FILTERS = "filters";
+
+	/**
+	 * Config file only: the number of threads decompressing a .tbz archive
+	 */
+	private static final String OPTION_FULL_DECOMPRESSTHREADS = "decompressthreads";
+
+	/**
+	 * Config file only: the directory of the tables' diff indexes; given one, each file is diffed against its table's index, and only the rows that change are
+	 * written
+	 */
+	private static final String OPTION_FULL_DIFFINDEXES = "diffindexes";
+
 	private static final String VERSION = "1.2.1";
 
 	private static final String DESCRIPTION = "EPFImporter is a tool for importing EPF files into a database.";
@@ -95,6 +174,8 @@ public class Program {
 	private static final String FLAT_CONFIG_PATH = "./EPFFlatConfig.json";
 
 	public static final String SNAPSHOT_PATH = "./EPFSnapshot.json";
+
+	private static final String INCREMENTAL_STATS_PATH = "./EPFIncrementalStats.json";
 	public static final String SNAPSHOT_DIRSLEFT = "dirsLeft";
 	public static final String SNAPSHOT_DIRSTOIMPORT = "dirsToImport";
 	public static final String SNAPSHOT_WLIST = "wList";
@@ -106,6 +187,16 @@ public class Program {
 	public static final String SNAPSHOT_FILESTOIMPORT = "filesToImport";
 
 	public static final String SNAPSHOT_FAILEDFILES = "failedFiles";
+	public static final String SNAPSHOT_INPROGRESS = "inProgress";
+	public static final String SNAPSHOT_FILENAME = "fileName";
+	public static final String SNAPSHOT_TABLENAME = "tableName";
+	public static final String SNAPSHOT_LASTRECORDINGESTED = "lastRecordIngested";
+	public static final String SNAPSHOT_SEEKPOS = "seekPos";
+
+	/**
+	 * Minimum time between writes of the in-progress checkpoint to the snapshot file
+	 */
+	private static final long SNAPSHOT_PROGRESS_INTERVAL = 5 * 1000;
 	private static final String LOGS_FOLDER = "EPFLogs";
 
 	private static final String LOGGER_CONFIG_PATH = "./EPFLogger.xml";
@@ -250,6 +341,50 @@ public class Program {
 			defaults.put(OPTION_FULL_SKIPKEYVIOLATORS, Boolean.TRUE);
 		}
 
+		if (commandLine.hasOption(OPTION_SHORT_MMAP)) {
+			defaults.put(OPTION_FULL_MMAP, Boolean.TRUE);
+		}
+
+		if (commandLine.hasOption(OPTION_SHORT_PARSETHREADS)) {
+			defaults.put(OPTION_FULL_PARSETHREADS, commandLine.getOptionValue(OPTION_SHORT_PARSETHREADS));
+		}
+
+		if (commandLine.hasOption(OPTION_SHORT_UNORDERED)) {
+			defaults.put(OPTION_FULL_UNORDERED, Boolean.TRUE);
+		}
+
+		if (commandLine.hasOption(OPTION_SHORT_WRITEMODE)) {
+			defaults.put(OPTION_FULL_WRITEMODE, commandLine.getOptionValue(OPTION_SHORT_WRITEMODE));
+		}
+
+		if (commandLine.hasOption(OPTION_SHORT_ENCODETHREADS)) {
+			defaults.put(OPTION_FULL_ENCODETHREADS, commandLine.getOptionValue(OPTION_SHORT_ENCODETHREADS));
+		}
+
+		if (commandLine.hasOption(OPTION_SHORT_WRITETHREADS)) {
+			defaults.put(OPTION_FULL_WRITETHREADS, commandLine.getOptionValue(OPTION_SHORT_WRITETHREADS));
+		}
+
+		if (commandLine.hasOption(OPTION_SHORT_IMPORTTHREADS)) {
+			defaults.put(OPTION_FULL_IMPORTTHREADS, commandLine.getOptionValue(OPTION_SHORT_IMPORTTHREADS));
+		}
+
+		if (commandLine.hasOption(OPTION_SHORT_MAXBIGFILES)) {
+			defaults.put(OPTION_FULL_MAXBIGFILES, commandLine.getOptionValue(OPTION_SHORT_MAXBIGFILES));
+		}
+
+		if (commandLine.hasOption(OPTION_SHORT_DEFERINDEXES)) {
+			defaults.put(OPTION_FULL_DEFERINDEXES, Boolean.TRUE);
+		}
+
+		if (commandLine.hasOption(OPTION_SHORT_UPSERT)) {
+			defaults.put(OPTION_FULL_UPSERT, Boolean.TRUE);
+		}
+
+		if (commandLine.hasOption(OPTION_SHORT_ADAPTIVEBATCHES)) {
+			defaults.put(OPTION_FULL_ADAPTIVEBATCHES, Boolean.TRUE);
+		}
+
 	}
 
 	private static void createLogFolder() {
@@ -348,6 +483,43 @@ public class Program {
 			optionsMap.put(OPTION_FULL_POSTGRESQL, Boolean.TRUE); // TODO: fix this
 			optionsMap.put(OPTION_FULL_SKIPKEYVIOLATORS, Boolean.FALSE);
 
+			options.addOption(OPTION_SHORT_MMAP, OPTION_FULL_MMAP, false, String.format("Memory-map files of %d MB or more instead of reading them through a buffer",
+					Parser.DEFAULT_MMAP_THRESHOLD / (1024 * 1024)));
+			optionsMap.put(OPTION_FULL_MMAP, Boolean.FALSE);
+
+			options.addOption(OPTION_SHORT_PARSETHREADS, OPTION_FULL_PARSETHREADS, true,
+					"Number of threads parsing each file (default is 1); above 1 the file is split into byte ranges parsed concurrently");
+
+			options.addOption(OPTION_SHORT_UNORDERED, OPTION_FULL_UNORDERED, false,
+					"Let records parsed on several threads be ingested out of file order; a resume then sends some records again, which are skipped by primary key (tables without one may get them twice)");
+			optionsMap.put(OPTION_FULL_UNORDERED, Boolean.FALSE);
+
+			options.addOption(OPTION_SHORT_WRITEMODE, OPTION_FULL_WRITEMODE, true,
+					"How records are sent to the database: \"statement\" (escaped multi-row statements, the default), \"batch\" (JDBC batches of a prepared statement) or \"bulk\" (COPY on Postgres, LOAD DATA LOCAL INFILE on MySQL)");
+
+			options.addOption(OPTION_SHORT_ENCODETHREADS, OPTION_FULL_ENCODETHREADS, true,
+					"Number of threads encoding parsed records for the database (default is 1), while others parse and write");
+
+			options.addOption(OPTION_SHORT_WRITETHREADS, OPTION_FULL_WRITETHREADS, true,
+					"Number of connections each table is written on concurrently (default is 1); incremental updates in place always use one");
+
+			options.addOption(OPTION_SHORT_IMPORTTHREADS, OPTION_FULL_IMPORTTHREADS, true, "Number of files imported at the same time (default is 1)");
+
+			options.addOption(OPTION_SHORT_MAXBIGFILES, OPTION_FULL_MAXBIGFILES, true, String.format(
+					"Most files of %d MB or more imported at the same time (default is no limit)", ImportOptions.DEFAULT_BIG_FILE_SIZE / (1024 * 1024)));
+
+			options.addOption(OPTION_SHORT_DEFERINDEXES, OPTION_FULL_DEFERINDEXES, false,
+					"Build each table's primary key after loading it rather than while loading it");
+			optionsMap.put(OPTION_FULL_DEFERINDEXES, Boolean.FALSE);
+
+			options.addOption(OPTION_SHORT_UPSERT, OPTION_FULL_UPSERT, false,
+					"Apply large incremental imports to the existing table in place with INSERT ... ON CONFLICT (Postgres only)");
+			optionsMap.put(OPTION_FULL_UPSERT, Boolean.FALSE);
+
+			options.addOption(OPTION_SHORT_ADAPTIVEBATCHES, OPTION_FULL_ADAPTIVEBATCHES, false,
+					"Size batches by their encoded bytes and how long they take to write, instead of a fixed number of records");
+			optionsMap.put(OPTION_FULL_ADAPTIVEBATCHES, Boolean.FALSE);
+
 
 			return cliParser.parse(options, args);
 
@@ -365,6 +537,98 @@ public class Program {
 		return null;
 	}
 
+	/**
+	 * Collects the tuning options that are passed down to each Ingester
+	 */
+	private static ImportOptions getImportOptions(Map<String, Object> optionsMap) {
+		ImportOptions importOptions = new ImportOptions();
+
+		if (((Boolean) optionsMap.get(OPTION_FULL_MMAP)).booleanValue()) {
+			importOptions.setMemoryMapThreshold(Parser.DEFAULT_MMAP_THRESHOLD);
+		}
+
+		importOptions.setParseThreads(getIntOption(optionsMap, OPTION_FULL_PARSETHREADS, 1));
+		importOptions.setDecompressThreads(getIntOption(optionsMap, OPTION_FULL_DECOMPRESSTHREADS, 1));
+		importOptions.setEncodeThreads(getIntOption(optionsMap, OPTION_FULL_ENCODETHREADS, 1));
+		importOptions.setWriteThreads(getIntOption(optionsMap, OPTION_FULL_WRITETHREADS, 1));
+		importOptions.setImportThreads(getIntOption(optionsMap, OPTION_FULL_IMPORTTHREADS, 1));
+		importOptions.setMaxBigFiles(getIntOption(optionsMap, OPTION_FULL_MAXBIGFILES, 0));
+		importOptions.setParseOrdered(!((Boolean) optionsMap.get(OPTION_FULL_UNORDERED)).booleanValue());
+		importOptions.setDeferIndexes(((Boolean) optionsMap.get(OPTION_FULL_DEFERINDEXES)).booleanValue());
+		importOptions.setUpsertIncrementals(((Boolean) optionsMap.get(OPTION_FULL_UPSERT)).booleanValue());
+		importOptions.setAdaptiveBatches(((Boolean) optionsMap.get(OPTION_FULL_ADAPTIVEBATCHES)).booleanValue());
+		importOptions.setIncrementalStats(IncrementalStats.load(INCREMENTAL_STATS_PATH));
+
+		Object indexes = optionsMap.get(OPTION_FULL_INDEXES);
+		if (indexes instanceof JsonObject) {
+			for (Entry<String, JsonElement> fileIndexes : ((JsonObject) indexes).entrySet()) {
+				for (JsonElement columns : fileIndexes.getValue().getAsJsonArray()) {
+					List<String> columnList = new ArrayList<String>();
+
+					for (String column : columns.getAsString().split(",")) {
+						columnList.add(column.trim());
+					}
+
+					importOptions.addSecondaryIndex(fileIndexes.getKey(), columnList);
+				}
+			}
+		}
+
+		Object columns = optionsMap.get(OPTION_FULL_COLUMNS);
+		if (columns instanceof JsonObject) {
+			for (Entry<String, JsonElement> fileColumns : ((JsonObject) columns).entrySet()) {
+				List<String> columnList = new ArrayList<String>();
+
+				for (JsonElement column : fileColumns.getValue().getAsJsonArray()) {
+					columnList.add(column.getAsString().trim());
+				}
+
+				importOptions.setProjectedColumns(fileColumns.getKey(), columnList);
+			}
+		}
+
+		Object filters = optionsMap.get(OPTION_FULL_FILTERS);
+		if (filters instanceof JsonObject) {
+			for (Entry<String, JsonElement> fileFilter : ((JsonObject) filters).entrySet()) {
+				importOptions.setRowFilter(fileFilter.getKey(), fileFilter.getValue().getAsString());
+			}
+		}
+
+		Object diffIndexes = optionsMap.get(OPTION_FULL_DIFFINDEXES);
+		if (diffIndexes != null) {
+			importOptions.setDiffIndexDirectory(diffIndexes.toString());
+		}
+
+		Object writeMode = optionsMap.get(OPTION_FULL_WRITEMODE);
+		if (writeMode != null) {
+			try {
+				importOptions.setWriteMode(ImportOptions.WriteMode.valueOf(writeMode.toString().trim().toUpperCase()));
+			} catch (IllegalArgumentException e) {
+				LOGGER.warn(String.format("Ignoring unknown write mode '%s'", writeMode));
+			}
+		}
+
+		return importOptions;
+	}
+
+	/**
+	 * Reads a numeric option, which may have come from the command line or the config file as a string
+	 */
+	private static int getIntOption(Map<String, Object> optionsMap, String key, int defaultValue) {
+		Object value = optionsMap.get(key);
+
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.toString().trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warn(String.format("Ignoring invalid value '%s' for %s", value, key));
+			return defaultValue;
+		}
+	}
+
 	/**
 	 * Perform a full import of the EPF files in the directory specified by directoryPath.
 	 * 
@@ -381,10 +645,20 @@ public class Program {
 	 * By default, any filename with a dot (".") in it will be excluded. Since EPF filenames never include a dot, this permits placing any file with an
 	 * extension (e.g., .txt) in the directory without disrupting the import.
 	 * 
+	 * Up to importOptions.getImportThreads() files are imported at once, each by its own Ingester, costliest first (see ImportScheduler).
+	 * 
+	 * directoryPath may instead be a bzip2-compressed tar archive (.tbz), as EPF feeds are shipped. Its members are then streamed out of the archive and
+	 * imported one at a time, in the order they're stored, without being written to disk (see importArchive()).
+	 * 
+	 * Progress through each file is checkpointed in the snapshot as it is ingested. resumePoints maps file names to such checkpoints; a full ingest of a file
+	 * that has one continues from the record and byte offset it holds instead of starting over.
+	 * 
 	 * Returns a list of any files for which the import failed (empty if all succeeded)
 	 */
-	public static List<String> doImport(String directoryPath, String dbHost, String dbUser, String dbPassword, String dbName, List<String> whiteList,
-			List<String> blackList, String tablePrefix, boolean allowExtensions, boolean skipKeyViolators, String recordDelim, String fieldDelim, boolean usePostgresImport) {
+	public static List<String> doImport(String directoryPath, final String dbHost, final String dbUser, final String dbPassword, final String dbName,
+			List<String> whiteList, List<String> blackList, final String tablePrefix, boolean allowExtensions, final boolean skipKeyViolators,
+			final String recordDelim, final String fieldDelim, final boolean usePostgresImport, final ImportOptions importOptions,
+			Map<String, JsonObject> resumePoints) {
 
 		if (!allowExtensions) {
 			blackList.add(".*\\..*?");
@@ -408,25 +682,26 @@ public class Program {
 		Pattern bMatcher = Pattern.compile(bListRe);
 
 		File dirPath = new File(directoryPath);
+		boolean archive = isArchive(dirPath);
 		List<String> fileList = new ArrayList<String>();
-		Collections.addAll(fileList, dirPath.list()); // list paths
-		// filter the list down to the entries matching our whitelist/blacklist
 
-		String f;
-		for (int i = fileList.size() - 1; i >= 0; i--) {
-			f = fileList.get(i);
-			if (!wMatcher.matcher(f).matches() || bMatcher.matcher(f).matches()) {
-				fileList.remove(f);
+		// an archive's members can't be listed without reading all of it; they're added to the list as they're reached
+		if (!archive) {
+			Collections.addAll(fileList, dirPath.list()); // list paths
+			// filter the list down to the entries matching our whitelist/blacklist
+
+			String f;
+			for (int i = fileList.size() - 1; i >= 0; i--) {
+				f = fileList.get(i);
+				if (!wMatcher.matcher(f).matches() || bMatcher.matcher(f).matches()) {
+					fileList.remove(f);
+				}
 			}
 		}
 
 		// commented out because - not sure what the relevance is
 		// fileList.sort();
 
-		List<String> filesLeft = new ArrayList<String>(fileList);
-		List<String> filesImported = new ArrayList<String>();
-		List<String> failedFiles = new ArrayList<String>();
-
 		SNAPSHOT_DICT.add(OPTION_FULL_TABLEPREFIX, new JsonPrimitive(tablePrefix));
 
 		JsonArray stringArray;
@@ -460,27 +735,9 @@ public class Program {
 		currentDict.add(OPTION_FULL_FIELDSEPARATOR, new JsonPrimitive(fieldDelim));
 		currentDict.add(SNAPSHOT_DIRPATH, new JsonPrimitive(dirPath.getAbsolutePath()));
 
-		currentDict.add(SNAPSHOT_FILESTOIMPORT, stringArray = new JsonArray());
-		for (String file : fileList) {
-			stringArray.add(new JsonPrimitive(file));
-		}
+		currentDict.add(SNAPSHOT_FILESTOIMPORT, toJsonArray(fileList));
 
-		currentDict.add(SNAPSHOT_FILESLEFT, stringArray = new JsonArray());
-		for (String file : filesLeft) {
-			stringArray.add(new JsonPrimitive(file));
-		}
-
-		currentDict.add(SNAPSHOT_FILESIMPORTED, stringArray = new JsonArray());
-		for (String file : filesImported) {
-			stringArray.add(new JsonPrimitive(file));
-		}
-
-		currentDict.add(SNAPSHOT_FAILEDFILES, stringArray = new JsonArray());
-		for (String file : failedFiles) {
-			stringArray.add(new JsonPrimitive(file));
-		}
-
-		dumpDict(SNAPSHOT_DICT, SNAPSHOT_PATH);
+		final ImportProgress progress = new ImportProgress(currentDict, fileList, resumePoints);
 
 		List<String> pathList = new ArrayList<String>();
 		for (String fileName : fileList) {
@@ -492,58 +749,55 @@ public class Program {
 			LOGGER.info(String.format("Starting import of %s...", dirPath.getAbsolutePath()));
 		}
 
-		for (String aPath : pathList) {
-			String fName = (new File(aPath)).getName();
-			// // In order to keep supposedly "matching" warnings from being suppressed during future
-			// // ingests, we need to clear the module's warning registry before each ingest
-			// try:
-			// EPFIngester.__warningregistry__.clear()
-			// except AttributeError:
-			// pass
+		if (archive) {
+			importArchive(dirPath, wMatcher, bMatcher, progress, dbHost, dbUser, dbPassword, dbName, tablePrefix, skipKeyViolators, recordDelim, fieldDelim,
+					usePostgresImport, importOptions);
+		} else {
+			final ImportScheduler scheduler = new ImportScheduler(pathList, recordDelim, importOptions.getBigFileSize(), importOptions.getMaxBigFiles());
+
+			int workers = Math.max(1, importOptions.getImportThreads());
+			ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder().setNameFormat("epf-import-%d").build());
+			List<Future<?>> imports = new ArrayList<Future<?>>();
+
+			for (int i = 0; i < workers; i++) {
+				imports.add(executor.submit(new Callable<Void>() {
+					public Void call() throws InterruptedException {
+						ImportJob job;
+						while ((job = scheduler.next()) != null) {
+							try {
+								importFile(job.path, null, 0, progress, dbHost, dbUser, dbPassword, dbName, tablePrefix, skipKeyViolators, recordDelim, fieldDelim,
+										usePostgresImport, importOptions);
+							} catch (RuntimeException e) {
+								LOGGER.error(String.format("Import of %s failed", job.fileName), e);
+								progress.failed(job.fileName);
+							} finally {
+								scheduler.finished(job);
+							}
+						}
 
-			Ingester ing;
-			try {
-				// TODO: make nicer
-				if (usePostgresImport) {
-					ing = new PostgresSQLIngester(aPath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim);
-				} else {
-					ing = new MySQLIngester(aPath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim);
-				}
-			} catch (Exception e) {
-				LOGGER.error(String.format("Unable to create EPFIngester for %s", fName), e);
-				failedFiles.add(fName);
-				dumpDict(SNAPSHOT_DICT, SNAPSHOT_PATH);
-				continue;
+						return null;
+					}
+				}));
 			}
 
-			try {
-				ing.ingest(skipKeyViolators);
-				
-				filesLeft.remove(fName);
-				currentDict.add(SNAPSHOT_FILESLEFT, stringArray = new JsonArray());
-				for (String file : filesLeft) {
-					stringArray.add(new JsonPrimitive(file));
-				}
-				
-				filesImported.add(fName);
-				currentDict.add(SNAPSHOT_FILESIMPORTED, stringArray = new JsonArray());
-				for (String file : filesImported) {
-					stringArray.add(new JsonPrimitive(file));
+			executor.shutdown();
+
+			for (Future<?> anImport : imports) {
+				try {
+					anImport.get();
+				} catch (InterruptedException e) {
+					LOGGER.error("Interrupted while waiting for imports to finish", e);
+					executor.shutdownNow();
+					Thread.currentThread().interrupt();
+					break;
+				} catch (ExecutionException e) {
+					LOGGER.error("Import worker failed", e.getCause());
 				}
-				
-				dumpDict(SNAPSHOT_DICT, SNAPSHOT_PATH);
-			} catch (SQLException e) {
-				failedFiles.add(fName);
-				dumpDict(SNAPSHOT_DICT, SNAPSHOT_PATH);
-				continue;
-			} catch (Exception e) {
-				LOGGER.error("An error occured while ingesting data.", e);
-				failedFiles.add(fName);
-				dumpDict(SNAPSHOT_DICT, SNAPSHOT_PATH);
-				continue;
 			}
 		}
 
+		List<String> failedFiles = progress.getFailedFiles();
+
 		Date endTime = new Date();
 		long ts = endTime.getTime() - startTime.getTime();
 		String dirName = dirPath.getName();
@@ -561,6 +815,360 @@ public class Program {
 		return failedFiles;
 	}
 
+	/**
+	 * True if path is a bzip2-compressed tar archive rather than a directory.
+	 */
+	private static boolean isArchive(File path) {
+		return path.isFile() && ARCHIVE_MATCH.matcher(path.getName().toLowerCase()).matches();
+	}
+
+	/**
+	 * Imports the members of the bzip2-compressed tar archive archivePath whose names pass wMatcher and bMatcher, as doImport() does the files of a
+	 * directory.
+	 * 
+	 * The archive can only be read front to back, so its members are imported one after the other, each streamed from the decompressor straight into its
+	 * Ingester; members that aren't imported are decompressed and skipped. With more than one decompress thread, the archive's bzip2 blocks are decoded
+	 * ahead of the import on that many threads.
+	 */
+	private static void importArchive(File archivePath, Pattern wMatcher, Pattern bMatcher, ImportProgress progress, String dbHost, String dbUser,
+			String dbPassword, String dbName, String tablePrefix, boolean skipKeyViolators, String recordDelim, String fieldDelim, boolean usePostgresImport,
+			ImportOptions importOptions) {
+		TarArchiveInputStream archive = null;
+
+		try {
+			InputStream compressed = new BufferedInputStream(new FileInputStream(archivePath), ARCHIVE_BUFFER_SIZE);
+
+			if (importOptions.getDecompressThreads() > 1) {
+				archive = new TarArchiveInputStream(new ParallelBzip2InputStream(compressed, importOptions.getDecompressThreads()));
+			} else {
+				archive = new TarArchiveInputStream(new BZip2CompressorInputStream(compressed, true));
+			}
+
+			TarArchiveEntry entry;
+			while ((entry = archive.getNextTarEntry()) != null) {
+				String fName = (new File(entry.getName())).getName();
+
+				if (!entry.isFile() || !wMatcher.matcher(fName).matches() || bMatcher.matcher(fName).matches()) {
+					continue;
+				}
+
+				progress.found(fName);
+
+				try {
+					importFile(entry.getName(), archive, entry.getSize(), progress, dbHost, dbUser, dbPassword, dbName, tablePrefix, skipKeyViolators,
+							recordDelim, fieldDelim, usePostgresImport, importOptions);
+				} catch (RuntimeException e) {
+					LOGGER.error(String.format("Import of %s failed", fName), e);
+					progress.failed(fName);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.error(String.format("Error reading archive %s", archivePath), e);
+			progress.failed(archivePath.getName());
+		} finally {
+			if (archive != null) {
+				try {
+					archive.close();
+				} catch (IOException e) {
+					LOGGER.error(String.format("Unable to close %s", archivePath), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Imports the EPF file at aPath, reporting the outcome to progress.
+	 * 
+	 * If stream isn't null, the file's length bytes are read from it instead, and aPath only names the file.
+	 */
+	private static void importFile(String aPath, InputStream stream, long length, ImportProgress progress, String dbHost, String dbUser, String dbPassword,
+			String dbName, String tablePrefix, boolean skipKeyViolators, String recordDelim, String fieldDelim, boolean usePostgresImport,
+			ImportOptions importOptions) {
+		String fName = (new File(aPath)).getName();
+		// // In order to keep supposedly "matching" warnings from being suppressed during future
+		// // ingests, we need to clear the module's warning registry before each ingest
+		// try:
+		// EPFIngester.__warningregistry__.clear()
+		// except AttributeError:
+		// pass
+
+		Ingester ing;
+		try {
+			// TODO: make nicer
+			if (stream != null && usePostgresImport) {
+				ing = new PostgresSQLIngester(aPath, stream, length, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, importOptions);
+			} else if (stream != null) {
+				ing = new MySQLIngester(aPath, stream, length, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, importOptions);
+			} else if (usePostgresImport) {
+				ing = new PostgresSQLIngester(aPath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, importOptions);
+			} else {
+				ing = new MySQLIngester(aPath, tablePrefix, dbHost, dbUser, dbPassword, dbName, recordDelim, fieldDelim, importOptions);
+			}
+		} catch (Exception e) {
+			LOGGER.error(String.format("Unable to create EPFIngester for %s", fName), e);
+			progress.failed(fName);
+			return;
+		}
+
+		ing.setProgressListener(progress);
+
+		try {
+			JsonObject resumePoint = progress.getResumePoint(fName);
+
+			if (resumePoint != null && canResumeFull(ing, resumePoint)) {
+				long fromRecord = resumePoint.get(SNAPSHOT_LASTRECORDINGESTED).getAsLong();
+				long fromPos = resumePoint.get(SNAPSHOT_SEEKPOS).getAsLong();
+
+				if (LOGGER.isInfoEnabled()) {
+					LOGGER.info(String.format("Resuming %s at record %d (byte %d)", fName, fromRecord, fromPos));
+				}
+
+				ing.ingestFullResume(fromRecord, fromPos, skipKeyViolators);
+			} else {
+				ing.ingest(skipKeyViolators);
+			}
+
+			progress.imported(fName);
+		} catch (SQLException e) {
+			progress.failed(fName);
+		} catch (Exception e) {
+			LOGGER.error("An error occured while ingesting data.", e);
+			progress.failed(fName);
+		} finally {
+			try {
+				ing.getParser().close();
+			} catch (IOException e) {
+				LOGGER.error(String.format("Unable to close %s", fName), e);
+			}
+		}
+	}
+
+	/**
+	 * A file waiting to be imported, with an estimate of how long it will take.
+	 */
+	private static class ImportJob {
+		String path;
+		String fileName;
+		long size;
+		long records;
+		long cost;
+		boolean big;
+	}
+
+	/**
+	 * Hands out files to the import threads longest first, so that the biggest tables don't start last and leave one thread running long after the others
+	 * are done.
+	 * 
+	 * A file's cost is estimated from its size plus COST_PER_RECORD for each record its trailer says it holds. If maxBig is positive, no more than maxBig
+	 * files of bigFileSize bytes or more are handed out at once; while that many are running, smaller files are handed out in their place.
+	 */
+	private static class ImportScheduler {
+		// what each record costs the database, in bytes parsed (statement, index and commit overhead)
+		private static final long COST_PER_RECORD = 100;
+
+		private List<ImportJob> waiting = new ArrayList<ImportJob>();
+		private int maxBig;
+		private int bigRunning;
+
+		ImportScheduler(List<String> pathList, String recordDelim, long bigFileSize, int maxBig) {
+			this.maxBig = maxBig;
+
+			for (String aPath : pathList) {
+				ImportJob job = new ImportJob();
+				job.path = aPath;
+				job.fileName = (new File(aPath)).getName();
+				job.size = (new File(aPath)).length();
+
+				try {
+					job.records = Parser.readRecordsExpected(aPath, recordDelim);
+				} catch (IOException e) {
+					LOGGER.warn(String.format("Unable to read the record count of %s; estimating its cost from its size", job.fileName), e);
+				}
+
+				job.cost = job.size + job.records * COST_PER_RECORD;
+				job.big = job.size >= bigFileSize;
+				waiting.add(job);
+			}
+
+			Collections.sort(waiting, new Comparator<ImportJob>() {
+				public int compare(ImportJob a, ImportJob b) {
+					return a.cost > b.cost ? -1 : (a.cost < b.cost ? 1 : 0);
+				}
+			});
+
+			if (LOGGER.isDebugEnabled()) {
+				for (ImportJob job : waiting) {
+					LOGGER.debug(String.format("%s: %d bytes, %d records, cost %d%s", job.fileName, job.size, job.records, job.cost, job.big ? " (big)" : ""));
+				}
+			}
+		}
+
+		/**
+		 * The costliest file that may start now, waiting for one if need be; null once every file has been handed out.
+		 */
+		synchronized ImportJob next() throws InterruptedException {
+			while (!waiting.isEmpty()) {
+				for (Iterator<ImportJob> i = waiting.iterator(); i.hasNext();) {
+					ImportJob job = i.next();
+
+					if (!job.big || maxBig <= 0 || bigRunning < maxBig) {
+						i.remove();
+						if (job.big) {
+							bigRunning++;
+						}
+						return job;
+					}
+				}
+
+				wait();
+			}
+
+			return null;
+		}
+
+		synchronized void finished(ImportJob job) {
+			if (job.big) {
+				bigRunning--;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Keeps the lists of files left, imported and failed in currentDict, along with a checkpoint for each file being ingested, and writes the snapshot when
+	 * they change (at most every SNAPSHOT_PROGRESS_INTERVAL for checkpoints).
+	 * 
+	 * Files may be imported on several threads at once, so every change is made while holding the lock on SNAPSHOT_DICT.
+	 */
+	private static class ImportProgress implements Ingester.ProgressListener {
+		private JsonObject currentDict;
+		private List<String> filesLeft;
+		private List<String> filesImported = new ArrayList<String>();
+		private List<String> failedFiles = new ArrayList<String>();
+		private Map<String, JsonObject> inProgress = new LinkedHashMap<String, JsonObject>();
+		private long lastDumpTime = 0;
+
+		ImportProgress(JsonObject currentDict, List<String> fileList, Map<String, JsonObject> resumePoints) {
+			this.currentDict = currentDict;
+			this.filesLeft = new ArrayList<String>(fileList);
+
+			if (resumePoints != null) {
+				inProgress.putAll(resumePoints);
+			}
+
+			synchronized (SNAPSHOT_DICT) {
+				update();
+				dumpDict(SNAPSHOT_DICT, SNAPSHOT_PATH);
+			}
+		}
+
+		/**
+		 * Adds fName to the files left, for files that weren't known of up front (the members of an archive).
+		 */
+		void found(String fName) {
+			synchronized (SNAPSHOT_DICT) {
+				if (!filesLeft.contains(fName)) {
+					filesLeft.add(fName);
+					update();
+				}
+			}
+		}
+
+		/**
+		 * The checkpoint fName was last resumable from, or null if there is none.
+		 */
+		JsonObject getResumePoint(String fName) {
+			synchronized (SNAPSHOT_DICT) {
+				return inProgress.get(fName);
+			}
+		}
+
+		public void recordsIngested(Ingester ingester, String tableName, long lastRecordIngested, long seekPos) {
+			JsonObject checkpoint = new JsonObject();
+			checkpoint.add(SNAPSHOT_FILENAME, new JsonPrimitive(ingester.getFileName()));
+			checkpoint.add(SNAPSHOT_TABLENAME, new JsonPrimitive(tableName));
+			checkpoint.add(SNAPSHOT_LASTRECORDINGESTED, new JsonPrimitive(Long.valueOf(lastRecordIngested)));
+			checkpoint.add(SNAPSHOT_SEEKPOS, new JsonPrimitive(Long.valueOf(seekPos)));
+
+			synchronized (SNAPSHOT_DICT) {
+				inProgress.put(ingester.getFileName(), checkpoint);
+				update();
+
+				long now = System.currentTimeMillis();
+				if (now - lastDumpTime >= SNAPSHOT_PROGRESS_INTERVAL) {
+					lastDumpTime = now;
+					dumpDict(SNAPSHOT_DICT, SNAPSHOT_PATH);
+				}
+			}
+		}
+
+		void imported(String fName) {
+			synchronized (SNAPSHOT_DICT) {
+				inProgress.remove(fName);
+				filesLeft.remove(fName);
+				filesImported.add(fName);
+				update();
+				dumpDict(SNAPSHOT_DICT, SNAPSHOT_PATH);
+			}
+		}
+
+		/**
+		 * Notes that fName failed; any checkpoint it left stays in the snapshot, so that it can be resumed.
+		 */
+		void failed(String fName) {
+			synchronized (SNAPSHOT_DICT) {
+				if (!failedFiles.contains(fName)) {
+					failedFiles.add(fName);
+				}
+				update();
+				dumpDict(SNAPSHOT_DICT, SNAPSHOT_PATH);
+			}
+		}
+
+		List<String> getFailedFiles() {
+			synchronized (SNAPSHOT_DICT) {
+				return new ArrayList<String>(failedFiles);
+			}
+		}
+
+		private void update() {
+			currentDict.add(SNAPSHOT_FILESLEFT, toJsonArray(filesLeft));
+			currentDict.add(SNAPSHOT_FILESIMPORTED, toJsonArray(filesImported));
+			currentDict.add(SNAPSHOT_FAILEDFILES, toJsonArray(failedFiles));
+
+			if (inProgress.isEmpty()) {
+				currentDict.remove(SNAPSHOT_INPROGRESS);
+			} else {
+				JsonArray checkpoints = new JsonArray();
+				for (JsonObject checkpoint : inProgress.values()) {
+					checkpoints.add(checkpoint);
+				}
+				currentDict.add(SNAPSHOT_INPROGRESS, checkpoints);
+			}
+		}
+	}
+
+	private static JsonArray toJsonArray(List<String> strings) {
+		JsonArray array = new JsonArray();
+		for (String string : strings) {
+			array.add(new JsonPrimitive(string));
+		}
+		return array;
+	}
+
+	/**
+	 * True if resumePoint was recorded while a full ingest of ing's file was filling its temporary table, and that table is still there.
+	 */
+	private static boolean canResumeFull(Ingester ing, JsonObject resumePoint) throws SQLException, InstantiationException, IllegalAccessException,
+			ClassNotFoundException {
+
+		if ("INCREMENTAL".equals(ing.getParser().getExportMode()) || !ing.getTmpTableName().equals(resumePoint.get(SNAPSHOT_TABLENAME).getAsString())) {
+			return false;
+		}
+
+		return ing.tableExists(ing.getTmpTableName(), null);
+	}
+
 	/**
 	 * Resume an interrupted full import based on the values in currentDict, which will normally be the currentDict unarchived from the EPFSnapshot.json file.
 	 */
@@ -569,7 +1177,7 @@ public class Program {
 																																						 * "epfimporter"
 																																						 */,
 			String dbPassword /* = "epf123" */, String dbName /* = "epf" */, boolean skipKeyViolators /* = false */, String recordDelim /* ="\u0002\n" */,
-			String fieldDelim /* ="\u0001" */, boolean usePostgres) {
+			String fieldDelim /* ="\u0001" */, boolean usePostgres, ImportOptions importOptions) {
 
 		String dirPath = currentDict.get(SNAPSHOT_DIRPATH).getAsString();
 		JsonArray stringArray = currentDict.get(SNAPSHOT_FILESLEFT).getAsJsonArray();
@@ -588,6 +1196,16 @@ public class Program {
 			wList.add(String.format("^%s$", aFile)); // anchor the regexes for exact matches
 		}
 
+		// the files left in an archive are only those reached so far, so an archive is gone through again with the original lists, less what's done
+		boolean archive = isArchive(new File(dirPath));
+		if (archive) {
+			wList.clear();
+
+			for (JsonElement mask : SNAPSHOT_DICT.get(SNAPSHOT_WLIST).getAsJsonArray()) {
+				wList.add(mask.getAsString());
+			}
+		}
+
 		stringArray = currentDict.get(SNAPSHOT_FILESIMPORTED).getAsJsonArray();
 		List<String> filesImported = new ArrayList<String>();
 		for (JsonElement element : stringArray) {
@@ -599,7 +1217,30 @@ public class Program {
 			bList.add(String.format("^%s$", aFile)); // anchor the regexes for exact matches
 		}
 
-		return doImport(dirPath, dbHost, dbUser, dbPassword, dbName, wList, bList, tablePrefix, false, skipKeyViolators, recordDelim, fieldDelim, usePostgres);
+		if (archive) {
+			for (JsonElement mask : SNAPSHOT_DICT.get(SNAPSHOT_BLIST).getAsJsonArray()) {
+				bList.add(mask.getAsString());
+			}
+		}
+
+		// one checkpoint per file being ingested; older snapshots hold a single one
+		Map<String, JsonObject> resumePoints = new HashMap<String, JsonObject>();
+		if (currentDict.has(SNAPSHOT_INPROGRESS)) {
+			JsonElement inProgress = currentDict.get(SNAPSHOT_INPROGRESS);
+
+			if (inProgress.isJsonArray()) {
+				for (JsonElement element : inProgress.getAsJsonArray()) {
+					JsonObject checkpoint = element.getAsJsonObject();
+					resumePoints.put(checkpoint.get(SNAPSHOT_FILENAME).getAsString(), checkpoint);
+				}
+			} else {
+				JsonObject checkpoint = inProgress.getAsJsonObject();
+				resumePoints.put(checkpoint.get(SNAPSHOT_FILENAME).getAsString(), checkpoint);
+			}
+		}
+
+		return doImport(dirPath, dbHost, dbUser, dbPassword, dbName, wList, bList, tablePrefix, false, skipKeyViolators, recordDelim, fieldDelim, usePostgres,
+				importOptions, resumePoints);
 
 	}
 
@@ -673,18 +1314,20 @@ public class Program {
 
 		for (Entry<String, JsonElement> entry : config.entrySet()) {
 			if (optionsMap.get(entry.getKey()) == null) {
-				String value = entry.getValue().getAsString();
-				if ("true".equals(value) || "false".equals(value)) {
-					optionsMap.put(entry.getKey(), Boolean.valueOf(value));
-				} else {
-					if (entry.getValue().isJsonArray()) {
-						List<String> stringArray = new ArrayList<String>();
+				if (entry.getValue().isJsonObject()) {
+					optionsMap.put(entry.getKey(), entry.getValue().getAsJsonObject());
+				} else if (entry.getValue().isJsonArray()) {
+					List<String> stringArray = new ArrayList<String>();
 
-						for (JsonElement element : entry.getValue().getAsJsonArray()) {
-							stringArray.add(element.getAsString());
-						}
+					for (JsonElement element : entry.getValue().getAsJsonArray()) {
+						stringArray.add(element.getAsString());
+					}
 
-						optionsMap.put(entry.getKey(), stringArray);
+					optionsMap.put(entry.getKey(), stringArray);
+				} else {
+					String value = entry.getValue().getAsString();
+					if ("true".equals(value) || "false".equals(value)) {
+						optionsMap.put(entry.getKey(), Boolean.valueOf(value));
 					} else {
 						optionsMap.put(entry.getKey(), value);
 					}
@@ -705,6 +1348,11 @@ public class Program {
 		String recordSep = (String) optionsMap.get(OPTION_FULL_RECORDSEPARATOR);
 		String fieldSep = (String) optionsMap.get(OPTION_FULL_FIELDSEPARATOR);
 		boolean allowExtensions = ((Boolean) optionsMap.get(OPTION_FULL_ALLOWEXTENSIONS)).booleanValue();
+		ImportOptions importOptions = getImportOptions(optionsMap);
+
+		// enough connections for every file being imported to hold all of its writers plus one for DDL, so that borrowing never deadlocks
+		ConnectionPool.getDefault().setMaxSize(
+				Math.max(ConnectionPool.DEFAULT_MAX_SIZE, Math.max(1, importOptions.getImportThreads()) * (Math.max(1, importOptions.getWriteThreads()) + 1)));
 
 		JsonArray stringArray;
 
@@ -732,7 +1380,8 @@ public class Program {
 
 			List<String> failedFiles = resumeImport(currentDict, tablePrefix, (String) optionsMap.get(OPTION_FULL_DBHOST),
 					(String) optionsMap.get(OPTION_FULL_DBUSER), (String) optionsMap.get(OPTION_FULL_DBPASSWORD), (String) optionsMap.get(OPTION_FULL_DBNAME),
-					((Boolean) optionsMap.get(OPTION_FULL_SKIPKEYVIOLATORS)).booleanValue(), recordSep, fieldSep, (Boolean) optionsMap.get(OPTION_FULL_POSTGRESQL));
+					((Boolean) optionsMap.get(OPTION_FULL_SKIPKEYVIOLATORS)).booleanValue(), recordSep, fieldSep, (Boolean) optionsMap.get(OPTION_FULL_POSTGRESQL),
+					importOptions);
 
 			if (failedFiles != null && failedFiles.size() > 0) {
 				failedFilesMap.put(currentDict.get(SNAPSHOT_DIRPATH).getAsString(), failedFiles);
@@ -785,7 +1434,8 @@ public class Program {
 			for (String dirPath : dirsToImport) {
 				List<String> failedFiles = doImport(dirPath, (String) optionsMap.get(OPTION_FULL_DBHOST), (String) optionsMap.get(OPTION_FULL_DBUSER),
 						(String) optionsMap.get(OPTION_FULL_DBPASSWORD), (String) optionsMap.get(OPTION_FULL_DBNAME), wList, bList, tablePrefix,
-						allowExtensions, ((Boolean) optionsMap.get(OPTION_FULL_SKIPKEYVIOLATORS)).booleanValue(), recordSep, fieldSep, (Boolean)optionsMap.get(OPTION_FULL_POSTGRESQL));
+						allowExtensions, ((Boolean) optionsMap.get(OPTION_FULL_SKIPKEYVIOLATORS)).booleanValue(), recordSep, fieldSep, (Boolean)optionsMap.get(OPTION_FULL_POSTGRESQL),
+						importOptions, null);
 
 				if (failedFiles != null && failedFiles.size() > 0) {
 					failedFilesMap.put(dirPath, failedFiles);
@@ -812,6 +1462,8 @@ public class Program {
 			LOGGER.info(String.format("Total import time for all directories: %d", ts));
 		}
 
+		ConnectionPool.getDefault().close();
+
 	}
 
 	private static JsonObject loadSnapShot() {
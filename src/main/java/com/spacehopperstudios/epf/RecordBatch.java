@@ -0,0 +1,224 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of records stored by column, with numbers and dates decoded into primitives.
+ *
+ * Number columns (the parser's getNumberColumns()) hold longs, and date columns (getDateColumns()) hold milliseconds since the epoch, reading the date in
+ * the default time zone as Timestamp.valueOf() would. Every other column holds strings. A value of a number or date column that can't be decoded is kept as
+ * the string the parser would have returned for it, for the database to make what it can of. Nulls are tracked in a bitmap per column.
+ *
+ * A batch is meant to be refilled, through reset(), rather than thrown away, so that its arrays are allocated once.
+ */
+public class RecordBatch {
+
+	public static final int TEXT = 0;
+	public static final int NUMBER = 1;
+	public static final int DATE = 2;
+
+	private int[] kinds;
+	private int capacity;
+	private int size;
+
+	private long[][] longs; // null for text columns
+	private String[][] strings; // text values, and typed values that couldn't be decoded
+	private long[][] nulls; // one bit per row
+
+	private char[] scratch = new char[32];
+
+	/**
+	 * kinds holds the kind of each column: TEXT, NUMBER or DATE.
+	 */
+	public RecordBatch(int[] kinds, int capacity) {
+		this.kinds = kinds.clone();
+		this.longs = new long[kinds.length][];
+		this.strings = new String[kinds.length][];
+		this.nulls = new long[kinds.length][];
+		allocate(Math.max(1, capacity));
+	}
+
+	private void allocate(int newCapacity) {
+		for (int j = 0; j < kinds.length; j++) {
+			if (kinds[j] != TEXT) {
+				longs[j] = (longs[j] == null ? new long[newCapacity] : Arrays.copyOf(longs[j], newCapacity));
+			}
+
+			strings[j] = (strings[j] == null ? new String[newCapacity] : Arrays.copyOf(strings[j], newCapacity));
+			nulls[j] = (nulls[j] == null ? new long[(newCapacity + 63) >> 6] : Arrays.copyOf(nulls[j], (newCapacity + 63) >> 6));
+		}
+
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Empties the batch, making room for at least capacity records.
+	 */
+	public void reset(int capacity) {
+		for (int j = 0; j < kinds.length; j++) {
+			Arrays.fill(strings[j], 0, size, null);
+			Arrays.fill(nulls[j], 0);
+		}
+
+		size = 0;
+
+		if (capacity > this.capacity) {
+			allocate(capacity);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+	public int getColumnCount() {
+		return kinds.length;
+	}
+
+	/**
+	 * TEXT, NUMBER or DATE.
+	 */
+	public int getKind(int column) {
+		return kinds[column];
+	}
+
+	public boolean isNull(int row, int column) {
+		return (nulls[column][row >> 6] & (1L << row)) != 0;
+	}
+
+	/**
+	 * Returns the value of a number column, or the milliseconds since the epoch of a date column; only meaningful if the value isn't null and getString()
+	 * returns null.
+	 */
+	public long getLong(int row, int column) {
+		return longs[column][row];
+	}
+
+	/**
+	 * Returns the value of a text column, or the undecodable value of a number or date column; null otherwise.
+	 */
+	public String getString(int row, int column) {
+		return strings[column][row];
+	}
+
+	/**
+	 * Adds an empty record, returning its row; its fields are then set with the set methods. Fields that aren't set are null.
+	 */
+	int addRow() {
+		if (size == capacity) {
+			allocate(capacity * 2);
+		}
+
+		return size++;
+	}
+
+	void setNull(int row, int column) {
+		nulls[column][row >> 6] |= 1L << row;
+	}
+
+	void setLong(int row, int column, long value) {
+		longs[column][row] = value;
+	}
+
+	void setString(int row, int column, String value) {
+		strings[column][row] = value;
+	}
+
+	/**
+	 * Returns a buffer of at least length chars for decoding a field into.
+	 */
+	char[] scratch(int length) {
+		if (scratch.length < length) {
+			scratch = new char[Math.max(length, scratch.length * 2)];
+		}
+
+		return scratch;
+	}
+
+	/**
+	 * Decodes a number, or a date as normalized by the parser, of length chars held by scratch(), returning false if it isn't one.
+	 */
+	boolean setDecoded(int row, int column, int length) {
+		char[] chars = scratch;
+
+		if (kinds[column] == NUMBER) {
+			return decodeLong(chars, length, row, column);
+		}
+
+		long millis = DateNormalizer.toEpochMillis(chars, length);
+		if (millis == Long.MIN_VALUE) {
+			return false;
+		}
+
+		setLong(row, column, millis);
+		return true;
+	}
+
+	/**
+	 * Adds a record as returned by the parser's nextRecord(), decoding its numbers and dates.
+	 */
+	void addRecord(List<String> record) {
+		int row = addRow();
+		int count = Math.min(record.size(), kinds.length);
+
+		for (int j = count; j < kinds.length; j++) {
+			setNull(row, j);
+		}
+
+		for (int j = 0; j < count; j++) {
+			String value = record.get(j);
+
+			if ("NULL".equals(value) || "null".equals(value)) {
+				setNull(row, j);
+			} else if (kinds[j] == TEXT) {
+				setString(row, j, value);
+			} else {
+				value.getChars(0, value.length(), scratch(value.length()), 0);
+
+				if (!setDecoded(row, j, value.length())) {
+					setString(row, j, value);
+				}
+			}
+		}
+	}
+
+	private boolean decodeLong(char[] chars, int length, int row, int column) {
+		int i = 0;
+		boolean negative = false;
+
+		if (length > 0 && (chars[0] == '-' || chars[0] == '+')) {
+			negative = (chars[0] == '-');
+			i++;
+		}
+
+		if (i == length || length - i > 18) {
+			return false; // empty, or might overflow
+		}
+
+		long value = 0;
+		for (; i < length; i++) {
+			int digit = chars[i] - '0';
+
+			if (digit < 0 || digit > 9) {
+				return false;
+			}
+
+			value = value * 10 + digit;
+		}
+
+		longs[column][row] = (negative ? -value : value);
+		return true;
+	}
+}
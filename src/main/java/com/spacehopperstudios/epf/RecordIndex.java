@@ -0,0 +1,183 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sparse index of record offsets, persisted in a side-car file next to the EPF file.
+ *
+ * Checkpoints, each a record number and the offset just after that many records, are appended to the side-car as soon as the parser first reaches them,
+ * so an interrupted import still leaves a usable index behind. They needn't fall on multiples of the interval, only be at least interval records apart, so
+ * a parser handing records back out of order can fill in the ones it went past. The side-car is named after the EPF file with a leading dot, which keeps it out of the default import blacklist, and it is
+ * discarded whenever the EPF file's length or modification time no longer match the ones it was built from.
+ */
+public class RecordIndex {
+
+	private static final Logger LOGGER = Logger.getLogger(RecordIndex.class);
+
+	public static final int DEFAULT_INTERVAL = 64 * 1024;
+
+	private static final int MAGIC = 0x45504649; // "EPFI"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+	private static final int ENTRY_SIZE = 8 + 8;
+
+	private RandomAccessFile indexFile;
+	private int interval;
+	private long[] recordNums = new long[64]; // ascending
+	private long[] offsets = new long[64]; // offsets[k] is where record recordNums[k] + 1 starts
+	private int count;
+
+	private RecordIndex(RandomAccessFile indexFile, int interval) {
+		this.indexFile = indexFile;
+		this.interval = interval;
+	}
+
+	/**
+	 * Opens (or creates) the index for the EPF file at filePath; returns null if the side-car can't be used, in which case seeks just scan from the start.
+	 */
+	public static RecordIndex open(String filePath, int interval) {
+		File epfFile = new File(filePath);
+		File file = getIndexFile(epfFile);
+
+		try {
+			RandomAccessFile indexFile = new RandomAccessFile(file, "rw");
+			RecordIndex index = new RecordIndex(indexFile, interval);
+
+			if (!index.load(epfFile)) {
+				indexFile.setLength(0);
+				indexFile.writeInt(MAGIC);
+				indexFile.writeInt(VERSION);
+				indexFile.writeLong(epfFile.length());
+				indexFile.writeLong(epfFile.lastModified());
+				indexFile.writeInt(interval);
+			}
+
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug(String.format("Using record index %s with %d checkpoints", file.getPath(), index.count));
+			}
+
+			return index;
+		} catch (IOException e) {
+			LOGGER.warn(String.format("Unable to use record index %s; seeks will scan from the start of the file", file.getPath()), e);
+			return null;
+		}
+	}
+
+	static File getIndexFile(File epfFile) {
+		return new File(epfFile.getParentFile(), "." + epfFile.getName() + ".idx");
+	}
+
+	/**
+	 * Reads an existing side-car, returning false if it is missing or stale.
+	 */
+	private boolean load(File epfFile) throws IOException {
+		if (indexFile.length() < HEADER_SIZE) {
+			return false;
+		}
+
+		indexFile.seek(0);
+		if (indexFile.readInt() != MAGIC || indexFile.readInt() != VERSION || indexFile.readLong() != epfFile.length()
+				|| indexFile.readLong() != epfFile.lastModified() || indexFile.readInt() != interval) {
+			return false;
+		}
+
+		int entries = (int) ((indexFile.length() - HEADER_SIZE) / ENTRY_SIZE); // a torn last entry is left out
+		for (int k = 0; k < entries; k++) {
+			long recordNum = indexFile.readLong();
+			long offset = indexFile.readLong();
+
+			if (count > 0 && recordNum <= recordNums[count - 1]) {
+				return false;
+			}
+
+			add(recordNum, offset);
+		}
+
+		return true;
+	}
+
+	private void add(long recordNum, long offset) {
+		if (count == offsets.length) {
+			long[] largerNums = new long[count * 2];
+			long[] larger = new long[count * 2];
+			System.arraycopy(recordNums, 0, largerNums, 0, count);
+			System.arraycopy(offsets, 0, larger, 0, count);
+			recordNums = largerNums;
+			offsets = larger;
+		}
+
+		recordNums[count] = recordNum;
+		offsets[count++] = offset;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Notes that the records after the first recordNum start at offset; kept only if recordNum is at least interval records past the last checkpoint, so
+	 * callers may offer every record they reach, in ascending order.
+	 */
+	public void record(long recordNum, long offset) {
+		if (recordNum < (count == 0 ? 0 : recordNums[count - 1]) + interval) {
+			return;
+		}
+
+		add(recordNum, offset);
+
+		try {
+			indexFile.seek(HEADER_SIZE + (count - 1) * (long) ENTRY_SIZE);
+			indexFile.writeLong(recordNum);
+			indexFile.writeLong(offset);
+		} catch (IOException e) {
+			LOGGER.warn("Unable to extend record index", e);
+		}
+	}
+
+	/**
+	 * The highest checkpointed record number not above recordNum (0 if there is none).
+	 */
+	public long checkpointBefore(long recordNum) {
+		int k = find(recordNum);
+		return k < 0 ? 0 : recordNums[k];
+	}
+
+	/**
+	 * Offset of a record number returned by checkpointBefore().
+	 */
+	public long offsetOf(long checkpoint) {
+		int k = find(checkpoint);
+		return k < 0 ? 0 : offsets[k];
+	}
+
+	/**
+	 * Index of the last checkpoint not above recordNum, or -1.
+	 */
+	private int find(long recordNum) {
+		int low = 0;
+		int high = count - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+
+			if (recordNums[mid] <= recordNum) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		return high;
+	}
+
+	public void close() throws IOException {
+		indexFile.close();
+	}
+}
@@ -0,0 +1,296 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Byte-oriented scanner over an EPF file.
+ *
+ * Records and fields are located by searching for the record and field delimiters directly in a window of raw bytes; nothing is decoded until a caller asks
+ * for a field's value, and each field is then decoded from UTF-8 exactly once. Subclasses decide where the window comes from (a read buffer, a memory
+ * mapping...) by implementing fill().
+ */
+public abstract class RecordScanner implements Closeable {
+
+	private final byte[] recordDelim;
+	private final byte[] fieldDelim;
+
+	/**
+	 * Bytes [0, windowLimit) of the window are valid, and correspond to file offsets [windowOffset, windowOffset + windowLimit)
+	 */
+	protected ByteBuffer window;
+	protected long windowOffset;
+	protected int windowLimit;
+
+	private int pos;
+
+	// bounds of the current record (delimiter excluded) and of its fields, as window indexes
+	private int recordStart;
+	private int recordEnd;
+	private int recordNext;
+	private int fieldCount;
+	private boolean fieldsComplete; // whether fieldCount covers the whole record
+	private int[] fieldStarts = new int[64];
+	private int[] fieldEnds = new int[64];
+
+	private byte[] scratch = new byte[1024];
+
+	public RecordScanner(String recordDelim, String fieldDelim) {
+		this.recordDelim = recordDelim.getBytes(Charsets.UTF_8);
+		this.fieldDelim = fieldDelim.getBytes(Charsets.UTF_8);
+		this.fieldCount = -1;
+	}
+
+	/**
+	 * Total length of the underlying data in bytes.
+	 */
+	public abstract long length() throws IOException;
+
+	/**
+	 * Makes the window start at offset (or at least contain it), holding as many bytes as possible and no fewer than minBytes unless the data ends first.
+	 *
+	 * Implementations must set window, windowOffset and windowLimit.
+	 */
+	protected abstract void fill(long offset, int minBytes) throws IOException;
+
+	public abstract void close() throws IOException;
+
+	/**
+	 * Offset of the next byte that will be scanned.
+	 */
+	public long position() {
+		return windowOffset + pos;
+	}
+
+	public void seek(long offset) throws IOException {
+		if (offset >= windowOffset && offset <= windowOffset + windowLimit) {
+			pos = (int) (offset - windowOffset);
+		} else {
+			fill(offset, 0);
+			pos = (int) (offset - windowOffset);
+		}
+
+		recordStart = recordEnd = recordNext = pos;
+		fieldCount = -1;
+	}
+
+	/**
+	 * Reads up to len bytes starting at offset, without changing the scan position.
+	 */
+	public byte[] readBytes(long offset, int len) throws IOException {
+		long saved = position();
+		long end = Math.min(length(), offset + len);
+		byte[] bytes = new byte[(int) Math.max(0, end - offset)];
+
+		if (bytes.length > 0) {
+			fill(offset, bytes.length);
+			int from = (int) (offset - windowOffset);
+
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = window.get(from + i);
+			}
+		}
+
+		seek(saved);
+		return bytes;
+	}
+
+	/**
+	 * Advances over the next record, comment rows included. Returns false at the end of the data.
+	 *
+	 * After this returns true, the record's bytes can be inspected with the other methods until the next call.
+	 */
+	public boolean nextRecord() throws IOException {
+		fieldCount = -1;
+
+		while (true) {
+			int ix = indexOf(recordDelim, pos, windowLimit);
+
+			if (ix >= 0) {
+				recordStart = pos;
+				recordEnd = ix;
+				recordNext = pos = ix + recordDelim.length;
+				return true;
+			}
+
+			long start = position();
+			long length = length();
+
+			if (windowOffset + windowLimit >= length) {
+				// end of data; whatever is left is an undelimited last record
+				if (pos >= windowLimit) {
+					return false;
+				}
+
+				recordStart = pos;
+				recordEnd = recordNext = pos = windowLimit;
+				return true;
+			}
+
+			// the record straddles the end of the window; refill from its start, asking for more than we have if it already filled the window
+			int have = windowLimit - pos;
+			fill(start, have == window.capacity() ? have * 2 : have + 1);
+			pos = (int) (start - windowOffset);
+		}
+	}
+
+	/**
+	 * True if the current record begins with the given (ASCII) comment character.
+	 */
+	public boolean isComment(char commentChar) {
+		return recordEnd > recordStart && window.get(recordStart) == (byte) commentChar;
+	}
+
+	/**
+	 * The current record, delimiter included, as a string.
+	 */
+	public String recordString() {
+		return decode(recordStart, recordNext);
+	}
+
+	/**
+	 * Length in bytes of the current record, delimiter included.
+	 */
+	public int recordLength() {
+		return recordNext - recordStart;
+	}
+
+	/**
+	 * Average length in bytes, delimiter included, of the records lying wholly in the window from the scan position on, or -1 if there are none. Doesn't
+	 * move the scan position.
+	 */
+	public double averageRecordLength() {
+		int count = 0;
+		int end = pos;
+		int ix;
+
+		while ((ix = indexOf(recordDelim, end, windowLimit)) >= 0) {
+			count++;
+			end = ix + recordDelim.length;
+		}
+
+		return count == 0 ? -1 : (double) (end - pos) / count;
+	}
+
+	/**
+	 * Locates the fields of the current record, returning how many there are.
+	 */
+	public int splitFields() {
+		return splitFields(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Locates the first maxFields fields of the current record, or all of them if there are fewer, returning how many were located. The rest of the record
+	 * isn't scanned.
+	 */
+	public int splitFields(int maxFields) {
+		if (fieldCount >= 0 && (fieldsComplete || fieldCount >= maxFields)) {
+			return Math.min(fieldCount, maxFields);
+		}
+
+		// carry on from the fields already located, if any
+		int count = Math.max(fieldCount, 0);
+		int start = (count > 0 ? fieldEnds[count - 1] + fieldDelim.length : recordStart);
+		fieldsComplete = false;
+
+		while (count < maxFields) {
+			int ix = indexOf(fieldDelim, start, recordEnd);
+
+			if (count == fieldStarts.length) {
+				int[] starts = new int[count * 2];
+				int[] ends = new int[count * 2];
+				System.arraycopy(fieldStarts, 0, starts, 0, count);
+				System.arraycopy(fieldEnds, 0, ends, 0, count);
+				fieldStarts = starts;
+				fieldEnds = ends;
+			}
+
+			fieldStarts[count] = start;
+
+			if (ix < 0) {
+				fieldEnds[count++] = recordEnd;
+				fieldsComplete = true;
+				break;
+			}
+
+			fieldEnds[count++] = ix;
+			start = ix + fieldDelim.length;
+		}
+
+		fieldCount = count;
+		return fieldCount;
+	}
+
+	/**
+	 * Length in bytes of field i of the current record; splitFields() must have been called.
+	 */
+	public int fieldLength(int i) {
+		return fieldEnds[i] - fieldStarts[i];
+	}
+
+	/**
+	 * Byte k of field i of the current record; splitFields() must have been called.
+	 */
+	public byte fieldByte(int i, int k) {
+		return window.get(fieldStarts[i] + k);
+	}
+
+	/**
+	 * Decodes field i of the current record; splitFields() must have been called.
+	 */
+	public String field(int i) {
+		return decode(fieldStarts[i], fieldEnds[i]);
+	}
+
+	private String decode(int from, int to) {
+		int len = to - from;
+
+		if (len == 0) {
+			return "";
+		}
+
+		if (window.hasArray()) {
+			return new String(window.array(), window.arrayOffset() + from, len, Charsets.UTF_8);
+		}
+
+		if (scratch.length < len) {
+			scratch = new byte[Math.max(len, scratch.length * 2)];
+		}
+
+		for (int i = 0; i < len; i++) {
+			scratch[i] = window.get(from + i);
+		}
+
+		return new String(scratch, 0, len, Charsets.UTF_8);
+	}
+
+	/**
+	 * Index of the first complete occurrence of delim in window[from, to), or -1.
+	 */
+	private int indexOf(byte[] delim, int from, int to) {
+		byte first = delim[0];
+		int last = to - delim.length;
+
+		for (int i = from; i <= last; i++) {
+			if (window.get(i) == first) {
+				int k = 1;
+
+				while (k < delim.length && window.get(i + k) == delim[k]) {
+					k++;
+				}
+
+				if (k == delim.length) {
+					return i;
+				}
+			}
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Writes batches of records, as returned by the {@link Parser}, into a table.
+ *
+ * Writing is split in two steps so that an {@link IngestPipeline} can run them on different threads: encode() turns a batch into whatever the writer sends
+ * (SQL text, bound values, a COPY stream), and write() sends it. encode() must not depend on the writer's connection and must be safe to call from several
+ * threads at once; write() is only ever called from one thread at a time. Each batch has been written by the time write() returns. Implementations hold
+ * their own connection, which close() releases.
+ */
+public interface RecordWriter {
+
+	/**
+	 * Number of records the writer would like in each batch.
+	 */
+	int getBatchSize();
+
+	/**
+	 * Encodes a batch of records for write().
+	 */
+	Object encode(List<List<String>> records) throws InstantiationException, IllegalAccessException, ClassNotFoundException;
+
+	/**
+	 * Returns roughly how many bytes a batch returned by encode() takes to send.
+	 */
+	long getEncodedSize(Object encoded);
+
+	/**
+	 * Sends a batch returned by encode(), of recordCount records.
+	 */
+	void write(Object encoded, int recordCount) throws SQLException;
+
+	/**
+	 * Number of records in batches the database rejected, which write() logged rather than threw, since the writer was created.
+	 */
+	long getRejectedRecords();
+
+	void close() throws SQLException;
+}
@@ -0,0 +1,314 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Diffs the records of an EPF file against a table's {@link DiffIndex} as they are parsed, so that only the records that change the table are written to
+ * it.
+ *
+ * Each record is hashed from the raw bytes of its fields: its primary key, and its other columns but export_date, which a full file gives every record
+ * whatever has changed. Records are written if their key is new, or if their values changed and their export_date isn't older than the row's. The index
+ * being made is kept in step, so that once the records have been written it describes the table.
+ *
+ * For a full file, the index is made afresh from the file's records, and the keys of the old index that it doesn't have are the rows to delete. For an
+ * incremental file, a copy of the index is updated in place. Building an index alongside an ordinary full import diffs nothing: every record is written.
+ */
+class RowDiff {
+
+	static final int BUILD = 0;
+	static final int FULL = 1;
+	static final int INCREMENTAL = 2;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private int mode;
+	private DiffIndex base; // the table as it is; null when building
+	private DiffIndex target; // the table as it will be
+
+	private int[] keyFields;
+	private int[] valueFields;
+	private int exportDateField; // -1 if the file has no export_date
+	private int fieldLimit;
+
+	private byte[] key = new byte[64];
+	private IOException failure;
+
+	private long added;
+	private long changed;
+	private long unchanged;
+	private long skipped; // older than the row, or a repeated key
+	private long deleted;
+	private long deleteCursor;
+
+	/**
+	 * keyFields and valueFields are the fields of the primary key and of the other columns that make the row hash, and exportDateField the field holding
+	 * export_date, or -1. For INCREMENTAL, base and target are the same copy.
+	 */
+	RowDiff(int mode, DiffIndex base, DiffIndex target, int[] keyFields, int[] valueFields, int exportDateField) {
+		this.mode = mode;
+		this.base = base;
+		this.target = target;
+		this.keyFields = keyFields;
+		this.valueFields = valueFields;
+		this.exportDateField = exportDateField;
+
+		for (int field : keyFields) {
+			fieldLimit = Math.max(fieldLimit, field + 1);
+		}
+
+		for (int field : valueFields) {
+			fieldLimit = Math.max(fieldLimit, field + 1);
+		}
+
+		fieldLimit = Math.max(fieldLimit, exportDateField + 1);
+	}
+
+	int getMode() {
+		return mode;
+	}
+
+	/**
+	 * Identifies a set of columns and primary key, so that an index isn't used with a table whose columns have changed.
+	 */
+	static long signature(List<String> columnNames, List<String> primaryKey) {
+		return hash(columnNames.toString() + primaryKey.toString());
+	}
+
+	/**
+	 * Identifies a file being applied to a table, for the index's pending mark; never 0.
+	 */
+	static long fileTag(String filePath) {
+		long tag = hash(filePath);
+		return tag == 0 ? 1 : tag;
+	}
+
+	private static long hash(String value) {
+		long h = FNV_OFFSET;
+
+		for (byte b : value.getBytes(Charsets.UTF_8)) {
+			h = (h ^ (b & 0xff)) * FNV_PRIME;
+		}
+
+		return mix(h);
+	}
+
+	/**
+	 * True if the record recordScanner is on is to be written; notes it in the index being made.
+	 *
+	 * Safe for workers to call concurrently with their own scanners: records are hashed in parallel, and looked up in the index one at a time.
+	 */
+	boolean accepts(RecordScanner recordScanner) {
+		int fieldCount = recordScanner.splitFields(fieldLimit);
+
+		long keyHash = hash(recordScanner, keyFields, fieldCount);
+		long rowHash = hash(recordScanner, valueFields, fieldCount);
+		long exportDate = (exportDateField < fieldCount ? parseLong(recordScanner, exportDateField) : 0);
+		keyHash = (keyHash == 0 ? 1 : keyHash); // 0 marks empty slots
+
+		synchronized (this) {
+			if (failure != null) {
+				return true;
+			}
+
+			try {
+				return apply(recordScanner, fieldCount, keyHash, rowHash, exportDate);
+			} catch (IOException e) {
+				failure = e; // reported by getFailure(); records are written from here on, as the index can't be trusted anyway
+				return true;
+			}
+		}
+	}
+
+	private boolean apply(RecordScanner recordScanner, int fieldCount, long keyHash, long rowHash, long exportDate) throws IOException {
+		long slot = target.find(keyHash);
+
+		if (mode == INCREMENTAL) {
+			if (slot < 0) {
+				target.add(keyHash, rowHash, exportDate, key, encodeKey(recordScanner, fieldCount));
+				added++;
+				return true;
+			} else if (target.getExportDate(slot) > exportDate) {
+				skipped++; // the table has a later version, which an upsert wouldn't overwrite
+				return false;
+			} else if (target.getRowHash(slot) == rowHash) {
+				unchanged++;
+				return false;
+			}
+
+			target.update(slot, rowHash, exportDate);
+			changed++;
+			return true;
+		}
+
+		if (slot >= 0) {
+			// a key repeated within the file: as with a full import, the first record wins
+			skipped++;
+			return mode == BUILD;
+		}
+
+		if (mode == BUILD) {
+			target.add(keyHash, rowHash, exportDate, key, encodeKey(recordScanner, fieldCount));
+			added++;
+			return true;
+		}
+
+		long baseSlot = base.find(keyHash);
+
+		if (baseSlot >= 0 && base.getRowHash(baseSlot) == rowHash) {
+			target.add(keyHash, rowHash, base.getExportDate(baseSlot), key, encodeKey(recordScanner, fieldCount)); // the row keeps its export_date
+			unchanged++;
+			return false;
+		}
+
+		target.add(keyHash, rowHash, exportDate, key, encodeKey(recordScanner, fieldCount));
+
+		if (baseSlot >= 0) {
+			changed++;
+		} else {
+			added++;
+		}
+
+		return true;
+	}
+
+	/**
+	 * An I/O error that stopped the index being made, or null.
+	 */
+	synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the next maxNum (or fewer) keys of rows a full file no longer has, as lists of primary key values, or an empty list once there are no more.
+	 */
+	List<List<String>> nextDeletedKeys(int maxNum) throws IOException {
+		List<List<String>> keys = new ArrayList<List<String>>();
+
+		while (keys.size() < maxNum && deleteCursor < base.getCapacity()) {
+			long keyHash = base.getKeyHash(deleteCursor);
+
+			if (keyHash != 0 && target.find(keyHash) < 0) {
+				keys.add(decodeKey(base.readKey(deleteCursor)));
+				deleted++;
+			}
+
+			deleteCursor++;
+		}
+
+		return keys;
+	}
+
+	private static long hash(RecordScanner recordScanner, int[] fields, int fieldCount) {
+		long h = FNV_OFFSET;
+
+		for (int field : fields) {
+			int length = (field < fieldCount ? recordScanner.fieldLength(field) : 0);
+
+			for (int k = 0; k < length; k++) {
+				h = (h ^ (recordScanner.fieldByte(field, k) & 0xff)) * FNV_PRIME;
+			}
+
+			h = (h ^ length) * FNV_PRIME; // so that moving bytes between fields changes the hash
+		}
+
+		return mix(h);
+	}
+
+	/**
+	 * Murmur3's finalizer, spreading FNV's weak high bits over the whole hash.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long parseLong(RecordScanner recordScanner, int field) {
+		long value = 0;
+		int length = recordScanner.fieldLength(field);
+
+		for (int k = 0; k < length && k < 18; k++) {
+			int digit = recordScanner.fieldByte(field, k) - '0';
+
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	/**
+	 * Copies the primary key's fields into key, each preceded by its length in two bytes, returning how many bytes that took.
+	 */
+	private int encodeKey(RecordScanner recordScanner, int fieldCount) {
+		int length = 0;
+
+		for (int field : keyFields) {
+			length += 2 + (field < fieldCount ? Math.min(recordScanner.fieldLength(field), 0xffff) : 0);
+		}
+
+		if (key.length < length) {
+			key = new byte[Math.max(length, key.length * 2)];
+		}
+
+		int pos = 0;
+		for (int field : keyFields) {
+			int fieldLength = (field < fieldCount ? Math.min(recordScanner.fieldLength(field), 0xffff) : 0);
+			key[pos++] = (byte) (fieldLength >>> 8);
+			key[pos++] = (byte) fieldLength;
+
+			for (int k = 0; k < fieldLength; k++) {
+				key[pos++] = recordScanner.fieldByte(field, k);
+			}
+		}
+
+		return length;
+	}
+
+	private static List<String> decodeKey(byte[] bytes) {
+		List<String> values = new ArrayList<String>();
+		int pos = 0;
+
+		while (pos < bytes.length) {
+			int length = ((bytes[pos] & 0xff) << 8) | (bytes[pos + 1] & 0xff);
+			values.add(new String(bytes, pos + 2, length, Charsets.UTF_8));
+			pos += 2 + length;
+		}
+
+		return values;
+	}
+
+	long getAdded() {
+		return added;
+	}
+
+	long getChanged() {
+		return changed;
+	}
+
+	long getUnchanged() {
+		return unchanged;
+	}
+
+	long getSkipped() {
+		return skipped;
+	}
+
+	long getDeleted() {
+		return deleted;
+	}
+}
@@ -0,0 +1,399 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A filter on the records of an EPF file, tested against the raw bytes of the fields it refers to so that rejected records are never decoded.
+ *
+ * A filter is one or more conditions joined by AND, each comparing a column with a literal, like a SQL WHERE clause:
+ *
+ * <pre>
+ * storefront_id IN (143441, 143444) AND export_date &gt; 1330000000
+ * </pre>
+ *
+ * The operators are =, !=, &lt;&gt;, &lt;, &lt;=, &gt;, &gt;=, IN and NOT IN; literals are integers or 'quoted strings'. Number columns are compared as
+ * numbers, date columns as normalized dates ('2009-06-21' or '2005-09-06-00:00:00') and every other column as text. As in SQL, an empty or NULL field
+ * matches no condition.
+ */
+class RowFilter {
+
+	private static final int EQ = 0;
+	private static final int NE = 1;
+	private static final int LT = 2;
+	private static final int LE = 3;
+	private static final int GT = 4;
+	private static final int GE = 5;
+	private static final int IN = 6;
+	private static final int NOT_IN = 7;
+
+	private static final int TEXT = 0;
+	private static final int NUMBER = 1;
+	private static final int DATE = 2;
+
+	private static class Condition {
+		int field;
+		int kind;
+		int op;
+		long[] numbers;
+		byte[][] texts; // UTF-8 for text columns, ASCII for date columns
+	}
+
+	private Condition[] conditions;
+	private int fieldLimit;
+
+	/**
+	 * Parses expression against the columns of a file, given by name along with the indexes of its number and date columns.
+	 */
+	RowFilter(String expression, List<String> columnNames, List<Integer> numberColumns, List<Integer> dateColumns) {
+		List<Condition> parsed = new ArrayList<Condition>();
+		Tokenizer tokens = new Tokenizer(expression);
+
+		do {
+			parsed.add(parseCondition(tokens, columnNames, numberColumns, dateColumns));
+		} while (tokens.keyword("AND"));
+
+		if (tokens.peek() != null) {
+			throw new IllegalArgumentException(String.format("Unexpected '%s' in row filter '%s'", tokens.peek(), expression));
+		}
+
+		this.conditions = parsed.toArray(new Condition[parsed.size()]);
+
+		for (Condition condition : conditions) {
+			fieldLimit = Math.max(fieldLimit, condition.field + 1);
+		}
+	}
+
+	/**
+	 * Fields after this one don't matter to the filter.
+	 */
+	int getFieldLimit() {
+		return fieldLimit;
+	}
+
+	/**
+	 * True if the record recordScanner is on passes every condition; dateNormalizer is used for date columns.
+	 */
+	boolean accepts(RecordScanner recordScanner, DateNormalizer dateNormalizer) {
+		int fieldCount = recordScanner.splitFields(fieldLimit);
+
+		for (Condition condition : conditions) {
+			if (condition.field >= fieldCount || !matches(condition, recordScanner, dateNormalizer)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean matches(Condition condition, RecordScanner recordScanner, DateNormalizer dateNormalizer) {
+		int field = condition.field;
+		int length = recordScanner.fieldLength(field);
+
+		if (length == 0 || (length == 4 && isNullLiteral(recordScanner, field))) {
+			return false;
+		}
+
+		if (condition.kind == NUMBER) {
+			long value = 0;
+			int k = 0;
+			boolean negative = false;
+
+			if (recordScanner.fieldByte(field, 0) == '-' || recordScanner.fieldByte(field, 0) == '+') {
+				negative = (recordScanner.fieldByte(field, 0) == '-');
+				k++;
+			}
+
+			if (k == length || length - k > 18) {
+				return false; // not a number we can compare
+			}
+
+			for (; k < length; k++) {
+				int digit = recordScanner.fieldByte(field, k) - '0';
+
+				if (digit < 0 || digit > 9) {
+					return false;
+				}
+
+				value = value * 10 + digit;
+			}
+
+			value = (negative ? -value : value);
+
+			for (int j = 0; j < condition.numbers.length; j++) {
+				int cmp = (value < condition.numbers[j] ? -1 : (value == condition.numbers[j] ? 0 : 1));
+
+				if (condition.op == IN && cmp == 0) {
+					return true;
+				} else if (condition.op == NOT_IN && cmp == 0) {
+					return false;
+				} else if (condition.op != IN && condition.op != NOT_IN) {
+					return test(condition.op, cmp);
+				}
+			}
+
+			return condition.op == NOT_IN;
+		}
+
+		if (condition.kind == DATE && !dateNormalizer.normalize(recordScanner, field)) {
+			return false;
+		}
+
+		for (int j = 0; j < condition.texts.length; j++) {
+			int cmp = (condition.kind == DATE ? dateNormalizer.compareTo(condition.texts[j]) : compare(recordScanner, field, length, condition.texts[j]));
+
+			if (condition.op == IN && cmp == 0) {
+				return true;
+			} else if (condition.op == NOT_IN && cmp == 0) {
+				return false;
+			} else if (condition.op != IN && condition.op != NOT_IN) {
+				return test(condition.op, cmp);
+			}
+		}
+
+		return condition.op == NOT_IN;
+	}
+
+	private static boolean test(int op, int cmp) {
+		switch (op) {
+		case EQ:
+			return cmp == 0;
+		case NE:
+			return cmp != 0;
+		case LT:
+			return cmp < 0;
+		case LE:
+			return cmp <= 0;
+		case GT:
+			return cmp > 0;
+		default:
+			return cmp >= 0;
+		}
+	}
+
+	/**
+	 * Compares field i, of length bytes, with value byte by byte; UTF-8 sorts the same way as the code points it encodes.
+	 */
+	private static int compare(RecordScanner recordScanner, int i, int length, byte[] value) {
+		int common = Math.min(length, value.length);
+
+		for (int k = 0; k < common; k++) {
+			int diff = (recordScanner.fieldByte(i, k) & 0xff) - (value[k] & 0xff);
+
+			if (diff != 0) {
+				return diff;
+			}
+		}
+
+		return length - value.length;
+	}
+
+	private static boolean isNullLiteral(RecordScanner recordScanner, int i) {
+		String literal = (recordScanner.fieldByte(i, 0) == 'N' ? "NULL" : "null");
+
+		for (int k = 0; k < 4; k++) {
+			if (recordScanner.fieldByte(i, k) != literal.charAt(k)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static Condition parseCondition(Tokenizer tokens, List<String> columnNames, List<Integer> numberColumns, List<Integer> dateColumns) {
+		Condition condition = new Condition();
+		String column = tokens.next();
+
+		condition.field = columnNames.indexOf(column);
+		if (condition.field < 0) {
+			throw new IllegalArgumentException(String.format("Unknown column '%s' in row filter '%s'", column, tokens.expression));
+		}
+
+		if (numberColumns.contains(Integer.valueOf(condition.field))) {
+			condition.kind = NUMBER;
+		} else if (dateColumns.contains(Integer.valueOf(condition.field))) {
+			condition.kind = DATE;
+		} else {
+			condition.kind = TEXT;
+		}
+
+		List<String> literals = new ArrayList<String>();
+
+		if (tokens.keyword("NOT")) {
+			if (!tokens.keyword("IN")) {
+				throw new IllegalArgumentException(String.format("Expected IN after NOT in row filter '%s'", tokens.expression));
+			}
+
+			condition.op = NOT_IN;
+			parseList(tokens, literals);
+		} else if (tokens.keyword("IN")) {
+			condition.op = IN;
+			parseList(tokens, literals);
+		} else {
+			condition.op = parseOperator(tokens);
+			literals.add(tokens.literal());
+		}
+
+		if (condition.kind == NUMBER) {
+			condition.numbers = new long[literals.size()];
+
+			for (int j = 0; j < literals.size(); j++) {
+				try {
+					condition.numbers[j] = Long.parseLong(literals.get(j));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(String.format("Column '%s' can only be compared with integers in row filter '%s'", column,
+							tokens.expression));
+				}
+			}
+		} else {
+			condition.texts = new byte[literals.size()][];
+
+			for (int j = 0; j < literals.size(); j++) {
+				String literal = (condition.kind == DATE ? Parser.normalizeDate(literals.get(j)) : literals.get(j));
+				condition.texts[j] = literal.getBytes(Charsets.UTF_8);
+			}
+		}
+
+		return condition;
+	}
+
+	private static void parseList(Tokenizer tokens, List<String> literals) {
+		tokens.expect("(");
+
+		do {
+			literals.add(tokens.literal());
+		} while (tokens.accept(","));
+
+		tokens.expect(")");
+	}
+
+	private static int parseOperator(Tokenizer tokens) {
+		String op = tokens.next();
+
+		if ("=".equals(op)) {
+			return EQ;
+		} else if ("!=".equals(op) || "<>".equals(op)) {
+			return NE;
+		} else if ("<".equals(op)) {
+			return LT;
+		} else if ("<=".equals(op)) {
+			return LE;
+		} else if (">".equals(op)) {
+			return GT;
+		} else if (">=".equals(op)) {
+			return GE;
+		}
+
+		throw new IllegalArgumentException(String.format("Unknown operator '%s' in row filter '%s'", op, tokens.expression));
+	}
+
+	/**
+	 * Splits an expression into words, numbers, quoted strings (kept with their quotes), operators and punctuation.
+	 */
+	private static class Tokenizer {
+		private String expression;
+		private List<String> tokens = new ArrayList<String>();
+		private int next;
+
+		Tokenizer(String expression) {
+			this.expression = expression;
+			int i = 0;
+
+			while (i < expression.length()) {
+				char c = expression.charAt(i);
+				int start = i;
+
+				if (Character.isWhitespace(c)) {
+					i++;
+					continue;
+				} else if (c == '\'') {
+					i++;
+					while (i < expression.length() && (expression.charAt(i) != '\'' || (i + 1 < expression.length() && expression.charAt(i + 1) == '\''))) {
+						i += (expression.charAt(i) == '\'' ? 2 : 1);
+					}
+
+					if (i == expression.length()) {
+						throw new IllegalArgumentException(String.format("Unterminated string in row filter '%s'", expression));
+					}
+
+					i++;
+				} else if (c == '<' || c == '>' || c == '!' || c == '=') {
+					i++;
+					if (i < expression.length() && (expression.charAt(i) == '=' || (c == '<' && expression.charAt(i) == '>'))) {
+						i++;
+					}
+				} else if (c == '(' || c == ')' || c == ',') {
+					i++;
+				} else {
+					while (i < expression.length() && (Character.isLetterOrDigit(expression.charAt(i)) || "_-+.".indexOf(expression.charAt(i)) >= 0)) {
+						i++;
+					}
+
+					if (i == start) {
+						throw new IllegalArgumentException(String.format("Unexpected '%c' in row filter '%s'", c, expression));
+					}
+				}
+
+				tokens.add(expression.substring(start, i));
+			}
+		}
+
+		String peek() {
+			return next < tokens.size() ? tokens.get(next) : null;
+		}
+
+		String next() {
+			if (next == tokens.size()) {
+				throw new IllegalArgumentException(String.format("Unexpected end of row filter '%s'", expression));
+			}
+
+			return tokens.get(next++);
+		}
+
+		boolean accept(String token) {
+			if (token.equals(peek())) {
+				next++;
+				return true;
+			}
+
+			return false;
+		}
+
+		boolean keyword(String keyword) {
+			if (peek() != null && keyword.equalsIgnoreCase(peek())) {
+				next++;
+				return true;
+			}
+
+			return false;
+		}
+
+		void expect(String token) {
+			if (!accept(token)) {
+				throw new IllegalArgumentException(String.format("Expected '%s' in row filter '%s'", token, expression));
+			}
+		}
+
+		/**
+		 * Reads a number or a quoted string, returning its value.
+		 */
+		String literal() {
+			String token = next();
+
+			if (token.startsWith("'")) {
+				return token.substring(1, token.length() - 1).replace("''", "'");
+			}
+
+			if ("(".equals(token) || ")".equals(token) || ",".equals(token)) {
+				throw new IllegalArgumentException(String.format("Expected a value in row filter '%s'", expression));
+			}
+
+			return token;
+		}
+	}
+}
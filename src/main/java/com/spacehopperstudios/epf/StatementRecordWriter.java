@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.spacehopperstudios.database.Connection;
+
+/**
+ * {@link RecordWriter} sending each batch as a single multi-row statement, with the values escaped into the SQL text by the {@link Ingester}.
+ */
+public class StatementRecordWriter implements RecordWriter {
+
+	private static final Logger LOGGER = Logger.getLogger(StatementRecordWriter.class);
+
+	// By default, we concatenate 200 inserts into a single INSERT statement.
+	// a large batch size per insert improves performance, until you start hitting max_packet_size issues.
+	// If you increase MySQL server's max_packet_size, you may get increased performance by increasing BATCH_SIZE
+	public static final int BATCH_SIZE = 200;
+
+	private Ingester ingester;
+	private Connection connection;
+	private String statementPrefix;
+	private String statementSuffix;
+	private long rejectedRecords;
+
+	/**
+	 * statementPrefix is everything before the values, e.g. "INSERT IGNORE INTO t (a, b) VALUES "
+	 */
+	public StatementRecordWriter(Ingester ingester, Connection connection, String statementPrefix) {
+		this(ingester, connection, statementPrefix, "");
+	}
+
+	/**
+	 * statementSuffix is everything after the values, e.g. " ON CONFLICT (a) DO NOTHING"
+	 */
+	public StatementRecordWriter(Ingester ingester, Connection connection, String statementPrefix, String statementSuffix) {
+		this.ingester = ingester;
+		this.connection = connection;
+		this.statementPrefix = statementPrefix;
+		this.statementSuffix = statementSuffix;
+	}
+
+	public int getBatchSize() {
+		return BATCH_SIZE;
+	}
+
+	public Object encode(List<List<String>> records) throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+		List<List<String>> escapedRecords = ingester.escapeRecords(records, null); // This will sanitize the records
+
+		List<String> stringList = new ArrayList<String>();
+		for (List<String> aRecord : escapedRecords) {
+			stringList.add(String.format("(%s)", Joiner.on(", ").join(aRecord)));
+		}
+
+		String colVals = new String(Joiner.on(", ").join(stringList).getBytes(), Charsets.UTF_8);
+		String exStr = statementPrefix + colVals;
+		// unquote NULLs
+		exStr = exStr.replace("'NULL'", "NULL");
+		exStr = exStr.replace("'null'", "NULL");
+		exStr += statementSuffix;
+
+		return exStr;
+	}
+
+	public long getEncodedSize(Object encoded) {
+		return BatchSizer.utf8Length((String) encoded);
+	}
+
+	public void write(Object encoded, int recordCount) throws SQLException {
+		String exStr = (String) encoded;
+
+		try {
+			connection.executeQuery(exStr);
+		} catch (SQLException e) {
+			LOGGER.error(String.format("Error occured executing: %s", exStr), e);
+			rejectedRecords += recordCount;
+			// } catch (SQLIntegrityConstraintViolationException e) {
+			// This is likely a primary key constraint violation; should only be hit if skipKeyViolators is False
+		}
+	}
+
+	public long getRejectedRecords() {
+		return rejectedRecords;
+	}
+
+	public void close() throws SQLException {
+		connection.disconnect();
+	}
+}
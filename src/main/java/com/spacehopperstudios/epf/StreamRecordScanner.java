@@ -0,0 +1,114 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link RecordScanner} reading from a stream, such as a member of a compressed archive, which can only be read front to back.
+ *
+ * The window can move forward as far as it likes, skipping the bytes in between, but never back before its start. That's enough to parse the header from
+ * the first window, and to resume an import by skipping ahead; anything that needs to read the end of the data first can't be done.
+ *
+ * The stream is left open on close(), for its owner to carry on with.
+ */
+public class StreamRecordScanner extends RecordScanner {
+
+	private InputStream stream;
+	private long length;
+
+	/**
+	 * length is the number of bytes to read from stream.
+	 */
+	public StreamRecordScanner(InputStream stream, long length, String recordDelim, String fieldDelim) {
+		this(stream, length, recordDelim, fieldDelim, FileRecordScanner.DEFAULT_BUFFER_SIZE);
+	}
+
+	public StreamRecordScanner(InputStream stream, long length, String recordDelim, String fieldDelim, int bufferSize) {
+		super(recordDelim, fieldDelim);
+
+		this.stream = stream;
+		this.length = length;
+		this.window = ByteBuffer.allocate(bufferSize);
+		this.windowOffset = 0;
+		this.windowLimit = 0;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	protected void fill(long offset, int minBytes) throws IOException {
+		if (offset < windowOffset) {
+			throw new IOException(String.format("Can't go back to offset %d of a stream that has been read from offset %d", offset, windowOffset));
+		}
+
+		if (minBytes > window.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(minBytes);
+			window.clear();
+			window.limit(windowLimit);
+			larger.put(window);
+			window = larger;
+		}
+
+		// keep whatever part of the current window is still wanted, and skip anything between it and offset
+		int keep = 0;
+		if (offset < windowOffset + windowLimit) {
+			int from = (int) (offset - windowOffset);
+			keep = windowLimit - from;
+			window.clear();
+			window.position(from);
+			window.limit(windowLimit);
+			window.compact();
+		} else {
+			skip(offset - (windowOffset + windowLimit));
+		}
+
+		window.clear();
+		window.position(keep);
+
+		long readAt = offset + keep;
+		while (window.hasRemaining() && readAt < length) {
+			int read = stream.read(window.array(), window.arrayOffset() + window.position(), (int) Math.min(window.remaining(), length - readAt));
+
+			if (read < 0) {
+				throw new EOFException(String.format("Stream ended at offset %d of %d", readAt, length));
+			}
+
+			window.position(window.position() + read);
+			readAt += read;
+		}
+
+		windowOffset = offset;
+		windowLimit = window.position();
+		window.clear();
+	}
+
+	private void skip(long count) throws IOException {
+		while (count > 0) {
+			long skipped = stream.skip(count);
+
+			if (skipped <= 0) {
+				// skip() may give up early without being at the end; read() tells us which
+				if (stream.read() < 0) {
+					throw new EOFException("Stream ended while skipping ahead");
+				}
+
+				skipped = 1;
+			}
+
+			count -= skipped;
+		}
+	}
+
+	@Override
+	public void close() {
+		// the stream belongs to whoever opened it
+	}
+}
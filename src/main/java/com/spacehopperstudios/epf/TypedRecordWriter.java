@@ -0,0 +1,18 @@
+/**
+ *
+ */
+package com.spacehopperstudios.epf;
+
+/**
+ * {@link RecordWriter} that can also take its records as a {@link RecordBatch}, already decoded into primitives, rather than as lists of strings.
+ *
+ * An {@link IngestPipeline} whose first writer implements this reads typed batches from the {@link Parser} and reuses each one once it has been written, so
+ * the value returned by encode() may refer to the batch until write() has returned.
+ */
+public interface TypedRecordWriter extends RecordWriter {
+
+	/**
+	 * Encodes a batch of typed records for write().
+	 */
+	Object encode(RecordBatch batch);
+}